@@ -0,0 +1,65 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the ACKs one operation is waiting for.
+ * <p>
+ * The DstoreModel reader threads call {@link #ack()} as the messages arrive, the future completes when the last
+ * expected ACK is counted, and the shared {@link TimerWheel} fails it when the timeout passes first. No thread is
+ * parked per pending ACK.
+ */
+public class AckTracker {
+
+    private final AtomicInteger remaining;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private volatile TimerWheel.Timeout expiry;
+
+    public AckTracker(int expected, long timeout) {
+        this.remaining = new AtomicInteger(expected);
+        if (expected <= 0) {
+            future.complete(null);
+            expiry = null;
+        } else {
+            expiry = TimerWheel.shared().schedule(() -> future.completeExceptionally(new TimeoutException()), timeout);
+        }
+    }
+
+    public void ack() {
+        if (remaining.decrementAndGet() == 0) {
+            future.complete(null);
+            expiry.cancel();
+        }
+    }
+
+    /**
+     * Moves the deadline to timeout from now, for an operation that is slow but still making progress.
+     */
+    public synchronized void extend(long timeout) {
+        if (!future.isDone() && expiry != null) {
+            expiry.cancel();
+            expiry = TimerWheel.shared().schedule(() -> future.completeExceptionally(new TimeoutException()), timeout);
+        }
+    }
+
+    public CompletableFuture<Void> getFuture() {
+        return future;
+    }
+
+    public int getRemaining() {
+        return Math.max(0, remaining.get());
+    }
+
+    /**
+     * Blocks the caller until every ACK has arrived (true) or the tracker expired (false).
+     */
+    public boolean await() throws InterruptedException {
+        try {
+            future.get();
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,833 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+/**
+ * First-party client for the Controller and Dstores.
+ * <p>
+ * Every operation returns a CompletableFuture straight away. Operations share a pool of Controller connections, so up
+ * to {@code poolSize} operations talk to the Controller at once and the rest queue for a free connection. A queued
+ * operation holds no thread, and neither does one waiting for its transfers to the Dstores: it only takes one of the
+ * client's threads while it talks to the Controller. Uploads to the Dstores named in STORE_TO run in parallel, and a
+ * failed load is retried with RELOAD on the same connection until the Controller runs out of replicas. Files of
+ * client.resumableBytes or more are uploaded in resumable sessions: when the connection to a Dstore breaks the upload
+ * reconnects, at least client.uploadRetries times and for at least twice the timeout, and carries on from the last byte
+ * the Dstore received.
+ * <p>
+ * The batch variants name many files in one Controller request and move each Dstore's share of the batch over a
+ * single connection, reporting a status per file.
+ * <p>
+ * When the namespace is split between several Controllers (see {@link ShardMap}) each operation goes to the Controller
+ * that owns the file, with a pool of connections per Controller. LIST and the batch operations are sent to every
+ * Controller involved at once and their results are merged.
+ * <p>
+ * When client.id is set, every connection names the client to the Controller with CLIENT, in the class given by
+ * client.class, so that all its connections share one fair share and rate limit (see {@link ClientScheduler}).
+ * <p>
+ * With client.pipeline set, each Controller gets a single connection instead of a pool. Every operation tags its
+ * requests with an ID of its own and up to {@code poolSize} operations run over the connection at once, with a reader
+ * thread handing each tagged reply to the operation waiting for it. The rest queue as they would for a pooled
+ * connection.
+ */
+public class AsyncClient implements AutoCloseable {
+
+    private static final long RESUMABLE_BYTES = Long.getLong("client.resumableBytes", 1024L * 1024);
+    private static final int UPLOAD_RETRIES = Integer.getInteger("client.uploadRetries", 5);
+    private static final boolean PIPELINE = Boolean.getBoolean("client.pipeline");
+
+    private final ShardMap shards;
+    private final int timeout;
+    private final int poolSize;
+    private final ConnectionPool[] pools;
+    private final ExecutorService operationExecutor;
+    private final ExecutorService transferExecutor;
+    private final String clientId = System.getProperty("client.id");
+    private final String clientClass = System.getProperty("client.class", ClientScheduler.DEFAULT_CLASS);
+    private volatile boolean closed;
+
+    public AsyncClient(int cport, int timeout, int poolSize) {
+        this(ShardMap.fromProperty(cport), timeout, poolSize);
+    }
+
+    public AsyncClient(ShardMap shards, int timeout, int poolSize) {
+        this.shards = shards;
+        this.timeout = timeout;
+        this.poolSize = poolSize;
+        this.pools = new ConnectionPool[shards.size()];
+        for (int shard = 0; shard < shards.size(); shard++) {
+            pools[shard] = new ConnectionPool(shards.get(shard));
+        }
+        this.operationExecutor = Executors.newFixedThreadPool(poolSize * shards.size(), daemonThreads("client-op"));
+        this.transferExecutor = Executors.newCachedThreadPool(daemonThreads("client-transfer"));
+    }
+
+    public CompletableFuture<Void> store(File file) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return Files.readAllBytes(file.toPath());
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, transferExecutor).thenCompose(data -> store(file.getName(), data));
+    }
+
+    public CompletableFuture<Void> store(String fileName, byte[] data) {
+        return withConnectionAsync(shards.shardOf(fileName), connection -> {
+            String reply = connection.request(Protocol.STORE_TOKEN + " " + fileName + " " + data.length);
+            String[] splitReply = reply.split(" ");
+            if (!splitReply[0].equals(Protocol.STORE_TO_TOKEN)) {
+                throw new ErrorResponseException(splitReply[0], fileName);
+            }
+
+            List<CompletableFuture<Void>> uploads = new ArrayList<>();
+            String uploadId = UUID.randomUUID().toString();
+            for (int i = 1; i < splitReply.length; i++) {
+                int dport = Integer.parseInt(splitReply[i]);
+                uploads.add(CompletableFuture.runAsync(() -> {
+                    if (data.length >= RESUMABLE_BYTES) {
+                        uploadResumable(dport, uploadId, fileName, data);
+                    } else {
+                        upload(dport, fileName, data);
+                    }
+                }, transferExecutor));
+            }
+            return afterTransfers(uploads, connection, c -> {
+                String complete = c.readReply();
+                if (!complete.equals(Protocol.STORE_COMPLETE_TOKEN)) {
+                    throw new ErrorResponseException(complete, fileName);
+                }
+                return null;
+            });
+        });
+    }
+
+    public CompletableFuture<byte[]> load(String fileName) {
+        return withConnection(shards.shardOf(fileName), connection -> loadWithFailover(connection, fileName));
+    }
+
+    private byte[] loadWithFailover(ControllerConnection connection, String fileName) throws Exception {
+        String reply = connection.request(Protocol.LOAD_TOKEN + " " + fileName);
+        while (true) {
+            String[] splitReply = reply.split(" ");
+            if (!splitReply[0].equals(Protocol.LOAD_FROM_TOKEN)) {
+                throw new ErrorResponseException(splitReply[0], fileName);
+            }
+            int dport = Integer.parseInt(splitReply[1]);
+            int fileSize = Integer.parseInt(splitReply[2]);
+            try {
+                return download(dport, fileName, fileSize);
+            } catch (IOException e) {
+                Log.warn("Load of " + fileName + " from Dstore " + dport + " failed, sending RELOAD");
+                reply = connection.request(Protocol.RELOAD_TOKEN + " " + fileName);
+            }
+        }
+    }
+
+    public CompletableFuture<Void> remove(String fileName) {
+        return withConnection(shards.shardOf(fileName), connection -> {
+            String reply = connection.request(Protocol.REMOVE_TOKEN + " " + fileName);
+            if (!reply.equals(Protocol.REMOVE_COMPLETE_TOKEN)) {
+                throw new ErrorResponseException(reply, fileName);
+            }
+            return null;
+        });
+    }
+
+    public CompletableFuture<String[]> list() {
+        List<CompletableFuture<String[]>> perShard = new ArrayList<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            perShard.add(withConnection(shard, AsyncClient::list));
+        }
+        if (perShard.size() == 1) {
+            return perShard.get(0);
+        }
+        return CompletableFuture.allOf(perShard.toArray(CompletableFuture<?>[]::new)).thenApply(v ->
+                perShard.stream().flatMap(files -> Arrays.stream(files.join())).toArray(String[]::new));
+    }
+
+    private static String[] list(ControllerConnection connection) throws Exception {
+        String reply = connection.request(Protocol.LIST_TOKEN);
+        String[] splitReply = reply.split(" ");
+        if (!splitReply[0].equals(Protocol.LIST_TOKEN)) {
+            throw new ErrorResponseException(splitReply[0], null);
+        }
+        return Arrays.copyOfRange(splitReply, 1, splitReply.length);
+    }
+
+    /**
+     * Lists, in name order, up to limit stored files whose names start with the prefix and sort after startAfter.
+     * Either may be empty. Pass the last name of a page as startAfter to get the next one; an empty page means there
+     * are no more. The Controller may return fewer than limit names even when more remain.
+     */
+    public CompletableFuture<String[]> listPage(String prefix, String startAfter, int limit) {
+        String request = Protocol.LIST_PAGE_TOKEN + " " + limit + " " + (prefix.isEmpty() ? "-" : prefix) + " "
+                + (startAfter.isEmpty() ? "-" : startAfter);
+        List<CompletableFuture<String[]>> perShard = new ArrayList<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            perShard.add(withConnection(shard, connection -> {
+                String[] splitReply = connection.request(request).split(" ");
+                if (!splitReply[0].equals(Protocol.LIST_PAGE_TOKEN)) {
+                    throw new ErrorResponseException(splitReply[0], null);
+                }
+                return Arrays.copyOfRange(splitReply, 1, splitReply.length);
+            }));
+        }
+        if (perShard.size() == 1) {
+            return perShard.get(0);
+        }
+        // Each shard returns its own first names after the cursor, so the first limit of them all make up the page
+        return CompletableFuture.allOf(perShard.toArray(CompletableFuture<?>[]::new)).thenApply(v ->
+                perShard.stream().flatMap(files -> Arrays.stream(files.join())).sorted().limit(limit).toArray(String[]::new));
+    }
+
+    /**
+     * Runs the action on every stored file whose name starts with the prefix, in name order, fetching pageSize names
+     * at a time so that the whole listing is never held in memory.
+     */
+    public CompletableFuture<Void> forEachFile(String prefix, int pageSize, Consumer<String> action) {
+        return forEachFile(prefix, "", pageSize, action);
+    }
+
+    private CompletableFuture<Void> forEachFile(String prefix, String startAfter, int pageSize, Consumer<String> action) {
+        return listPage(prefix, startAfter, pageSize).thenCompose(page -> {
+            if (page.length == 0) {
+                return CompletableFuture.completedFuture(null);
+            }
+            Arrays.stream(page).forEach(action);
+            return forEachFile(prefix, page[page.length - 1], pageSize, action);
+        });
+    }
+
+    /**
+     * Stores every file in one batch. The returned map gives the Controller's status for each file, which is
+     * STORE_COMPLETE on success or an error token such as ERROR_FILE_ALREADY_EXISTS.
+     */
+    public CompletableFuture<Map<String, String>> storeBatch(Map<String, byte[]> files) {
+        return forEachShard(files.keySet(), (shard, fileNames) -> withConnectionAsync(shard, connection -> {
+            StringBuilder request = new StringBuilder(Protocol.STORE_BATCH_TOKEN).append(" ").append(fileNames.size());
+            fileNames.forEach(fileName -> request.append(" ").append(fileName).append(" ").append(files.get(fileName).length));
+            String[] splitReply = connection.request(request.toString()).split(" ");
+            if (!splitReply[0].equals(Protocol.STORE_BATCH_TO_TOKEN)) {
+                throw new ErrorResponseException(splitReply[0], null);
+            }
+
+            Map<Integer, List<String>> filesPerDstore = new LinkedHashMap<>();
+            int index = 2;
+            for (int i = 0; i < Integer.parseInt(splitReply[1]); i++) {
+                String fileName = splitReply[index++];
+                int numberOfDstores = Integer.parseInt(splitReply[index++]);
+                for (int j = 0; j < numberOfDstores; j++) {
+                    filesPerDstore.computeIfAbsent(Integer.parseInt(splitReply[index++]), p -> new ArrayList<>()).add(fileName);
+                }
+            }
+
+            List<CompletableFuture<Void>> uploads = new ArrayList<>();
+            filesPerDstore.forEach((dport, batch) -> uploads.add(CompletableFuture.runAsync(() -> {
+                StringBuilder header = new StringBuilder(Protocol.STORE_BATCH_TOKEN).append(" ").append(batch.size());
+                List<byte[]> contents = new ArrayList<>();
+                batch.forEach(fileName -> {
+                    header.append(" ").append(fileName).append(" ").append(files.get(fileName).length);
+                    contents.add(files.get(fileName));
+                });
+                upload(dport, header.toString(), contents);
+            }, transferExecutor).exceptionally(e -> {
+                Log.error("Batch upload to Dstore " + dport + " failed: " + e.getMessage());
+                return null;
+            })));
+            return afterTransfers(uploads, connection, c -> parseBatchResult(Protocol.STORE_BATCH_COMPLETE_TOKEN, c.readReply()));
+        }));
+    }
+
+    /**
+     * Loads every file in one batch. Files that do not exist, or that could not be fetched from any replica, map to
+     * null in the result.
+     */
+    public CompletableFuture<Map<String, byte[]>> loadBatch(Collection<String> files) {
+        return forEachShard(files, (shard, fileNames) -> withConnectionAsync(shard, connection -> {
+            String[] splitReply = connection.request(batchRequest(Protocol.LOAD_BATCH_TOKEN, fileNames)).split(" ");
+            if (!splitReply[0].equals(Protocol.LOAD_BATCH_FROM_TOKEN)) {
+                throw new ErrorResponseException(splitReply[0], null);
+            }
+
+            Map<String, byte[]> result = new LinkedHashMap<>();
+            Map<Integer, List<String>> filesPerDstore = new LinkedHashMap<>();
+            Map<String, Integer> sizes = new LinkedHashMap<>();
+            for (int i = 0; i < Integer.parseInt(splitReply[1]); i++) {
+                String fileName = splitReply[2 + i * 3];
+                int dport = Integer.parseInt(splitReply[3 + i * 3]);
+                result.put(fileName, null);
+                if (dport >= 0) {
+                    sizes.put(fileName, Integer.parseInt(splitReply[4 + i * 3]));
+                    filesPerDstore.computeIfAbsent(dport, p -> new ArrayList<>()).add(fileName);
+                }
+            }
+
+            List<CompletableFuture<Void>> downloads = new ArrayList<>();
+            filesPerDstore.forEach((dport, batch) -> downloads.add(CompletableFuture.runAsync(() -> {
+                Map<String, byte[]> contents = downloadBatch(dport, batch, sizes);
+                synchronized (result) {
+                    result.putAll(contents);
+                }
+            }, transferExecutor).exceptionally(e -> null)));
+            return afterTransfers(downloads, connection, c -> {
+                // Anything that failed in the batch falls back to a normal LOAD with RELOAD failover
+                for (String fileName : sizes.keySet()) {
+                    if (result.get(fileName) == null) {
+                        try {
+                            result.put(fileName, loadWithFailover(c, fileName));
+                        } catch (ErrorResponseException e) {
+                            Log.error("Could not load " + fileName + ": " + e.getMessage());
+                        }
+                    }
+                }
+                return result;
+            });
+        }));
+    }
+
+    /**
+     * Removes every file in one batch. The returned map gives the Controller's status for each file, which is
+     * REMOVE_COMPLETE on success or an error token such as ERROR_FILE_DOES_NOT_EXIST.
+     */
+    public CompletableFuture<Map<String, String>> removeBatch(Collection<String> files) {
+        return forEachShard(files, (shard, fileNames) -> withConnection(shard, connection ->
+                parseBatchResult(Protocol.REMOVE_BATCH_COMPLETE_TOKEN,
+                        connection.request(batchRequest(Protocol.REMOVE_BATCH_TOKEN, fileNames)))));
+    }
+
+    /**
+     * Splits a batch by the shard that owns each file, sends every part to its Controller at once and merges the
+     * per-file results.
+     */
+    private <V> CompletableFuture<Map<String, V>> forEachShard(Collection<String> fileNames,
+            BiFunction<Integer, List<String>, CompletableFuture<Map<String, V>>> batch) {
+        Map<Integer, List<String>> fileNamesPerShard = new LinkedHashMap<>();
+        fileNames.forEach(fileName -> fileNamesPerShard.computeIfAbsent(shards.shardOf(fileName), s -> new ArrayList<>()).add(fileName));
+        if (fileNamesPerShard.size() <= 1) {
+            return batch.apply(fileNamesPerShard.isEmpty() ? 0 : fileNamesPerShard.keySet().iterator().next(), new ArrayList<>(fileNames));
+        }
+        List<CompletableFuture<Map<String, V>>> results = new ArrayList<>();
+        fileNamesPerShard.forEach((shard, batchFileNames) -> results.add(batch.apply(shard, batchFileNames)));
+        return CompletableFuture.allOf(results.toArray(CompletableFuture<?>[]::new)).thenApply(v -> {
+            Map<String, V> byFileName = new HashMap<>();
+            results.forEach(result -> byFileName.putAll(result.join()));
+            Map<String, V> merged = new LinkedHashMap<>();
+            fileNames.forEach(fileName -> merged.put(fileName, byFileName.get(fileName)));
+            return merged;
+        });
+    }
+
+    private static String batchRequest(String token, Collection<String> fileNames) {
+        StringBuilder request = new StringBuilder(token).append(" ").append(fileNames.size());
+        fileNames.forEach(fileName -> request.append(" ").append(fileName));
+        return request.toString();
+    }
+
+    private static Map<String, String> parseBatchResult(String token, String reply) throws ErrorResponseException {
+        String[] splitReply = reply.split(" ");
+        if (!splitReply[0].equals(token)) {
+            throw new ErrorResponseException(splitReply[0], null);
+        }
+        Map<String, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < Integer.parseInt(splitReply[1]); i++) {
+            result.put(splitReply[2 + i * 2], splitReply[3 + i * 2]);
+        }
+        return result;
+    }
+
+    private void upload(int dport, String fileName, byte[] data) {
+        upload(dport, Protocol.STORE_TOKEN + " " + fileName + " " + data.length, List.of(data));
+    }
+
+    private void upload(int dport, String header, List<byte[]> contents) {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), dport)) {
+            socket.setSoTimeout(timeout);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println(header);
+            String ack = in.readLine();
+            if (!Protocol.ACK_TOKEN.equals(ack)) {
+                throw new IOException("Dstore " + dport + " replied " + ack + " instead of " + Protocol.ACK_TOKEN);
+            }
+            OutputStream dataOut = socket.getOutputStream();
+            for (byte[] data : contents) {
+                dataOut.write(data);
+            }
+            dataOut.flush();
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Uploads the file in a session the Dstore keeps under the upload ID, reconnecting after a failure and sending only
+     * the bytes the Dstore does not have yet. It keeps retrying for at least twice the timeout, so a Dstore that only
+     * notices the broken connection when it times out is still reached.
+     */
+    private void uploadResumable(int dport, String uploadId, String fileName, byte[] data) {
+        long giveUpAt = System.nanoTime() + 2L * timeout * 1_000_000;
+        for (int attempt = 0; ; attempt++) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), dport)) {
+                socket.setSoTimeout(timeout);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+                out.println(Protocol.STORE_RESUMABLE_TOKEN + " " + uploadId + " " + fileName + " " + data.length);
+                String reply = in.readLine();
+                if (reply == null || !reply.startsWith(Protocol.STORE_OFFSET_TOKEN + " ")) {
+                    throw new IOException("Dstore " + dport + " replied " + reply + " instead of " + Protocol.STORE_OFFSET_TOKEN);
+                }
+                int offset = Integer.parseInt(reply.substring(Protocol.STORE_OFFSET_TOKEN.length() + 1));
+                OutputStream dataOut = socket.getOutputStream();
+                dataOut.write(data, offset, data.length - offset);
+                dataOut.flush();
+                if (!Protocol.ACK_TOKEN.equals(in.readLine())) {
+                    throw new IOException("Dstore " + dport + " did not confirm the upload of " + fileName);
+                }
+                return;
+            } catch (IOException e) {
+                if (attempt >= UPLOAD_RETRIES && System.nanoTime() - giveUpAt >= 0) {
+                    throw new CompletionException(e);
+                }
+                Log.warn("Upload of " + fileName + " to Dstore " + dport + " failed (" + e.getMessage() + "), resuming");
+                try {
+                    Thread.sleep(Math.min(100L << Math.min(attempt, 5), Math.max(100, timeout / 4)));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(e);
+                }
+            }
+        }
+    }
+
+    private Map<String, byte[]> downloadBatch(int dport, List<String> fileNames, Map<String, Integer> sizes) {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), dport)) {
+            socket.setSoTimeout(timeout);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println(batchRequest(Protocol.LOAD_DATA_BATCH_TOKEN, fileNames));
+            InputStream in = socket.getInputStream();
+            Map<String, byte[]> contents = new LinkedHashMap<>();
+            for (String fileName : fileNames) {
+                byte[] data = in.readNBytes(sizes.get(fileName));
+                if (data.length != sizes.get(fileName)) {
+                    break;
+                }
+                contents.put(fileName, data);
+            }
+            return contents;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private byte[] download(int dport, String fileName, int fileSize) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), dport)) {
+            socket.setSoTimeout(timeout);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println(Protocol.LOAD_DATA_TOKEN + " " + fileName);
+            InputStream in = socket.getInputStream();
+            byte[] data = in.readNBytes(fileSize);
+            if (data.length != fileSize) {
+                throw new IOException("Dstore " + dport + " sent " + data.length + " of " + fileSize + " bytes");
+            }
+            return data;
+        }
+    }
+
+    private <T> CompletableFuture<T> withConnection(int shard, Operation<T> operation) {
+        return withConnectionAsync(shard, connection -> CompletableFuture.completedFuture(operation.run(connection)));
+    }
+
+    /**
+     * Runs an operation whose connection is held across stages, such as a STORE waiting for its uploads. The
+     * connection goes back to the pool once the returned stage completes.
+     */
+    private <T> CompletableFuture<T> withConnectionAsync(int shard, AsyncOperation<T> operation) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Client has been closed"));
+        }
+        ConnectionPool pool = pools[shard];
+        return pool.acquire().thenComposeAsync(connection -> {
+            CompletableFuture<T> result;
+            try {
+                result = operation.run(connection);
+            } catch (Exception e) {
+                result = CompletableFuture.failedFuture(e);
+            }
+            return result.whenComplete((value, e) -> {
+                // The Controller answered with an error, so the connection is still in step
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause == null || cause instanceof ErrorResponseException) {
+                    pool.release(connection);
+                } else {
+                    pool.discard(connection);
+                }
+            });
+        }, operationExecutor);
+    }
+
+    /**
+     * Carries the operation on over its connection once the transfers have completed.
+     */
+    private <T> CompletableFuture<T> afterTransfers(List<CompletableFuture<Void>> transfers, ControllerConnection connection,
+            Operation<T> next) {
+        return CompletableFuture.allOf(transfers.toArray(CompletableFuture<?>[]::new)).thenApplyAsync(v -> {
+            try {
+                return next.run(connection);
+            } catch (Exception e) {
+                throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+            }
+        }, operationExecutor);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        operationExecutor.shutdown();
+        transferExecutor.shutdown();
+        for (ConnectionPool pool : pools) {
+            pool.close();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private interface Operation<T> {
+        T run(ControllerConnection connection) throws Exception;
+    }
+
+    private interface AsyncOperation<T> {
+        CompletableFuture<T> run(ControllerConnection connection) throws Exception;
+    }
+
+    /**
+     * Up to {@code poolSize} connections to one Controller, or in pipeline mode up to {@code poolSize} operations over
+     * the shared one. Operations that find them all in use wait in a queue and are handed a connection as one is
+     * released.
+     */
+    private class ConnectionPool {
+        private final int cport;
+        private final ArrayDeque<ControllerConnection> idleConnections = new ArrayDeque<>();
+        private final ArrayDeque<CompletableFuture<ControllerConnection>> waiting = new ArrayDeque<>();
+        private int openConnections; // Or operations running over the pipeline
+        private Pipeline pipeline;
+
+        ConnectionPool(int cport) {
+            this.cport = cport;
+        }
+
+        CompletableFuture<ControllerConnection> acquire() {
+            synchronized (this) {
+                ControllerConnection connection = idleConnections.poll();
+                if (connection != null) {
+                    return CompletableFuture.completedFuture(connection);
+                }
+                if (openConnections == poolSize) {
+                    CompletableFuture<ControllerConnection> waiter = new CompletableFuture<>();
+                    waiting.add(waiter);
+                    return waiter;
+                }
+                openConnections++;
+            }
+            return open();
+        }
+
+        /**
+         * Opens a connection in a slot already counted as open, giving the slot up again if that fails.
+         */
+        private CompletableFuture<ControllerConnection> open() {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return PIPELINE ? new TaggedConnection(pipeline()) : new ControllerConnection(cport);
+                } catch (IOException e) {
+                    discard(null);
+                    throw new CompletionException(e);
+                }
+            }, operationExecutor);
+        }
+
+        /**
+         * The shared connection, opened again if the last one broke.
+         */
+        synchronized Pipeline pipeline() throws IOException {
+            if (pipeline == null || pipeline.isBroken()) {
+                pipeline = new Pipeline(cport);
+            }
+            return pipeline;
+        }
+
+        void release(ControllerConnection connection) {
+            if (connection instanceof TaggedConnection) {
+                discard(connection);
+                return;
+            }
+            CompletableFuture<ControllerConnection> waiter;
+            synchronized (this) {
+                waiter = waiting.poll();
+                if (waiter == null) {
+                    if (closed) {
+                        connection.close();
+                    } else {
+                        idleConnections.add(connection);
+                    }
+                    return;
+                }
+            }
+            waiter.complete(connection);
+        }
+
+        void discard(ControllerConnection connection) {
+            if (connection != null) {
+                connection.close();
+            }
+            CompletableFuture<ControllerConnection> waiter;
+            synchronized (this) {
+                waiter = waiting.poll();
+                if (waiter == null) {
+                    openConnections--;
+                    return;
+                }
+            }
+            // The waiting operation takes the slot over with a connection, or a tag on the pipeline, of its own
+            open().whenComplete((opened, e) -> {
+                if (e != null) {
+                    waiter.completeExceptionally(e);
+                } else {
+                    waiter.complete(opened);
+                }
+            });
+        }
+
+        void close() {
+            List<CompletableFuture<ControllerConnection>> waiters;
+            synchronized (this) {
+                if (pipeline != null) {
+                    pipeline.close();
+                }
+                ControllerConnection connection;
+                while ((connection = idleConnections.poll()) != null) {
+                    connection.close();
+                }
+                waiters = new ArrayList<>(waiting);
+                waiting.clear();
+            }
+            waiters.forEach(waiter -> waiter.completeExceptionally(new IOException("Client has been closed")));
+        }
+    }
+
+    private class ControllerConnection {
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+
+        ControllerConnection(int cport) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), cport);
+            socket.setSoTimeout(timeout * 2);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream(), true);
+            if (clientId != null) {
+                out.println(Protocol.CLIENT_TOKEN + " " + clientId + " " + clientClass);
+            }
+        }
+
+        ControllerConnection() {
+            socket = null;
+            in = null;
+            out = null;
+        }
+
+        String request(String message) throws IOException {
+            out.println(message);
+            return readReply();
+        }
+
+        String readReply() throws IOException {
+            String reply = in.readLine();
+            if (reply == null) {
+                throw new IOException("Controller closed the connection");
+            }
+            return reply;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.error("Could not close the connection to the Controller", e);
+            }
+        }
+    }
+
+    /**
+     * One connection to a Controller shared by every operation, each tagging its requests with its own ID.
+     */
+    private class Pipeline extends ControllerConnection {
+        private final Map<String, BlockingQueue<String>> waiting = new ConcurrentHashMap<>();
+        private final AtomicLong nextTag = new AtomicLong();
+        private volatile boolean broken;
+
+        Pipeline(int cport) throws IOException {
+            super(cport);
+            // Only the reader thread reads, and it waits for replies however long the connection is idle
+            socket.setSoTimeout(0);
+            Thread reader = new Thread(this::readReplies, "client-pipeline-" + cport);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readReplies() {
+            MessageTokenizer tokenizer = new MessageTokenizer();
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (!MessageTokenizer.startsWithToken(line, Protocol.TAG_TOKEN)) {
+                        Log.warn("Untagged reply on a pipelined connection: " + line);
+                        continue;
+                    }
+                    tokenizer.reset(line);
+                    tokenizer.skip();
+                    String tag = tokenizer.next();
+                    BlockingQueue<String> replies = waiting.get(tag);
+                    // An operation that gave up waiting has unregistered its tag
+                    if (replies != null) {
+                        replies.add(line.substring(Protocol.TAG_TOKEN.length() + tag.length() + 2));
+                    }
+                }
+            } catch (IOException e) {
+                Log.debug(() -> "Pipelined connection failed: " + e.getMessage());
+            } finally {
+                broken = true;
+                waiting.values().forEach(replies -> replies.add(BROKEN));
+            }
+        }
+
+        String register() {
+            String tag = Long.toString(nextTag.incrementAndGet(), 36);
+            waiting.put(tag, new LinkedBlockingQueue<>());
+            return tag;
+        }
+
+        void unregister(String tag) {
+            waiting.remove(tag);
+        }
+
+        void send(String tag, String message) throws IOException {
+            if (broken) {
+                throw new IOException("Controller closed the connection");
+            }
+            synchronized (out) {
+                out.println(Protocol.TAG_TOKEN + " " + tag + " " + message);
+            }
+        }
+
+        String readReply(String tag) throws IOException {
+            BlockingQueue<String> replies = waiting.get(tag);
+            String reply;
+            try {
+                reply = replies.poll(timeout * 2L, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the Controller", e);
+            }
+            if (reply == null) {
+                throw new SocketTimeoutException("Timed out waiting for the Controller");
+            }
+            if (reply == BROKEN) {
+                throw new IOException("Controller closed the connection");
+            }
+            return reply;
+        }
+
+        boolean isBroken() {
+            return broken;
+        }
+    }
+
+    // Handed to the operations still waiting when a pipelined connection breaks
+    private static final String BROKEN = new String("BROKEN");
+
+    /**
+     * One operation's view of a pipelined connection: its requests and replies carry the operation's tag.
+     */
+    private class TaggedConnection extends ControllerConnection {
+        private final Pipeline pipeline;
+        private final String tag;
+
+        TaggedConnection(Pipeline pipeline) {
+            this.pipeline = pipeline;
+            this.tag = pipeline.register();
+        }
+
+        @Override
+        String request(String message) throws IOException {
+            pipeline.send(tag, message);
+            return readReply();
+        }
+
+        @Override
+        String readReply() throws IOException {
+            return pipeline.readReply(tag);
+        }
+
+        @Override
+        void close() {
+            pipeline.unregister(tag);
+        }
+    }
+
+    /**
+     * Thrown when the Controller answers with an error token such as ERROR_FILE_DOES_NOT_EXIST. The connection that
+     * received it is still usable.
+     */
+    public static class ErrorResponseException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final String token;
+
+        public ErrorResponseException(String token, String fileName) {
+            super(fileName == null ? token : token + " for " + fileName);
+            this.token = token;
+        }
+
+        public String getToken() {
+            return token;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Runs the Controller's client requests on a fixed pool of workers, shared fairly between clients.
+ * <p>
+ * Each client gets a flow of its own. A connection has a flow to itself until it names itself with CLIENT id [class],
+ * after which all the connections with that id share one flow. Requests wait in their flow's queue
+ * and the workers (controller.scheduler.threads) pick among the flows by start-time fair queuing: each request is
+ * tagged with a virtual start time that follows on from the previous request of its flow, and the request with the
+ * lowest tag runs next. A client that floods the Controller therefore only queues behind itself, and a client sending
+ * now and then is served ahead of the backlog. A batch costs one per file. No flow runs more than
+ * controller.scheduler.maxPerClient requests at once. Requests that block their worker until the Dstores answer, such
+ * as STORE, are also capped across all flows at controller.scheduler.maxBlocking, which is kept below the number of
+ * workers, so however many clients flood the Controller with slow STOREs some workers are always left for the rest.
+ * <p>
+ * Flows can also be rate limited with token buckets, in requests per second:
+ * <ul>
+ *     <li>controller.rate.client - the limit for every client, 0 for none (the default)</li>
+ *     <li>controller.rate.client.&lt;id&gt; - the limit for one client, overriding the one above</li>
+ *     <li>controller.rate.class.&lt;class&gt; - a limit shared by all the clients of a class</li>
+ * </ul>
+ * Buckets hold controller.rate.burstSeconds worth of requests. A request that finds its bucket empty waits in its queue
+ * rather than being rejected. Each flow's rate over the last second and its queue length are exposed as the
+ * client.&lt;id&gt;.rate and client.&lt;id&gt;.queued gauges. A named flow with no connections is forgotten once it has
+ * been idle for controller.scheduler.idleMillis, and the flow of an unnamed connection as soon as the connection has
+ * gone.
+ */
+public class ClientScheduler {
+
+    public static final String DEFAULT_CLASS = "default";
+
+    private static final int THREADS = Integer.getInteger("controller.scheduler.threads", 64);
+    private static final int MAX_PER_CLIENT = Integer.getInteger("controller.scheduler.maxPerClient", 16);
+    private static final int MAX_BLOCKING = Math.max(1, Math.min(THREADS - 1,
+            Integer.getInteger("controller.scheduler.maxBlocking", THREADS * 3 / 4)));
+    private static final long IDLE_MILLIS = Long.getLong("controller.scheduler.idleMillis", 60000L);
+    private static final double BURST_SECONDS = Double.parseDouble(System.getProperty("controller.rate.burstSeconds", "1"));
+
+    private final Metrics metrics;
+    private final Map<String, Flow> flows = new HashMap<>();
+    private final Map<String, TokenBucket> classBuckets = new HashMap<>();
+    private final List<Flow> ready = new ArrayList<>(); // Flows with queued requests
+    private final List<Thread> workers = new ArrayList<>();
+    private double virtualTime;
+    private int blockingRunning;
+
+    public ClientScheduler(Metrics metrics) {
+        this.metrics = metrics;
+        metrics.gauge("scheduler.clients", this::getClients);
+        for (int i = 0; i < THREADS; i++) {
+            Thread worker = new Thread(this::work, "client-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Stops the workers. Requests still queued are never run.
+     */
+    public void shutdown() {
+        workers.forEach(Thread::interrupt);
+    }
+
+    /**
+     * One client's queue of requests, with its limits and the bookkeeping behind its gauges.
+     */
+    public static class Flow {
+        private final String id;
+        private final boolean named;
+        private final ArrayDeque<Request> queue = new ArrayDeque<>();
+        private TokenBucket bucket;
+        private TokenBucket classBucket;
+        private int running;
+        private int connections;
+        private long idleSince;
+        private double lastFinish;
+        private long windowStart = System.nanoTime();
+        private long windowCount;
+        private long rate;
+
+        private Flow(String id, boolean named) {
+            this.id = id;
+            this.named = named;
+        }
+
+        public String getId() {
+            return id;
+        }
+    }
+
+    private static class Request {
+        private final Runnable task;
+        private final int cost;
+        private final boolean blocking;
+        private final double start;
+        private final long enqueued = System.nanoTime();
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private boolean throttled;
+
+        private Request(Runnable task, int cost, boolean blocking, double start) {
+            this.task = task;
+            this.cost = cost;
+            this.blocking = blocking;
+            this.start = start;
+        }
+    }
+
+    /**
+     * Requests per second, refilled continuously up to a burst. Tokens may go negative when a batch costs more than
+     * the bucket holds, and the debt is paid off before the next request runs.
+     */
+    private static class TokenBucket {
+        private final double rate;
+        private final double burst;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        private TokenBucket(double rate) {
+            this.rate = rate;
+            this.burst = Math.max(1, rate * BURST_SECONDS);
+            this.tokens = burst;
+        }
+
+        private static TokenBucket of(String property, String fallback) {
+            double rate = Double.parseDouble(System.getProperty(property, fallback));
+            return rate > 0 ? new TokenBucket(rate) : null;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+            last = now;
+        }
+
+        private boolean available(long now) {
+            refill(now);
+            return tokens > 0;
+        }
+
+        private long nanosUntilAvailable() {
+            return (long) Math.ceil((1e-9 - tokens) * 1e9 / rate);
+        }
+    }
+
+    /**
+     * Returns the flow of the named client, creating it if need be, and counts a connection against it. Every call
+     * must be paired with {@link #close(Flow)}.
+     */
+    public Flow open(String id, String clientClass) {
+        return open(id, clientClass, true);
+    }
+
+    /**
+     * Returns a flow of its own for a connection that has not named itself, identified by its remote address and
+     * port. It must be closed in the same way.
+     */
+    public Flow openUnnamed(String connection) {
+        return open(connection, DEFAULT_CLASS, false);
+    }
+
+    private synchronized Flow open(String id, String clientClass, boolean named) {
+        long now = System.nanoTime();
+        forgetIdle(now);
+        Flow flow = flows.get(id);
+        if (flow == null) {
+            flow = new Flow(id, named);
+            flow.lastFinish = virtualTime;
+            flow.bucket = TokenBucket.of("controller.rate.client." + id, System.getProperty("controller.rate.client", "0"));
+            flows.put(id, flow);
+            Flow created = flow;
+            metrics.gauge("client." + id + ".rate", () -> getRate(created));
+            metrics.gauge("client." + id + ".queued", () -> getQueued(created));
+        }
+        flow.classBucket = classBuckets.computeIfAbsent(clientClass, c -> TokenBucket.of("controller.rate.class." + c, "0"));
+        flow.connections++;
+        return flow;
+    }
+
+    public synchronized void close(Flow flow) {
+        if (--flow.connections == 0) {
+            flow.idleSince = System.nanoTime();
+        }
+    }
+
+    /**
+     * Queues a request costing the given number of requests against its flow's fair share and limits. The future
+     * completes once it has run.
+     */
+    public CompletableFuture<Void> submit(Flow flow, int cost, Runnable task) {
+        return submit(flow, cost, false, task);
+    }
+
+    /**
+     * Queues a request in the same way, marking whether it blocks its worker waiting on the Dstores.
+     */
+    public synchronized CompletableFuture<Void> submit(Flow flow, int cost, boolean blocking, Runnable task) {
+        Request request = new Request(task, cost, blocking, Math.max(virtualTime, flow.lastFinish));
+        flow.lastFinish = request.start + cost;
+        if (flow.queue.isEmpty()) {
+            ready.add(flow);
+        }
+        flow.queue.add(request);
+        notify();
+        return request.done;
+    }
+
+    public synchronized int getClients() {
+        return flows.size();
+    }
+
+    private void work() {
+        while (true) {
+            Flow flow;
+            Request request;
+            try {
+                synchronized (this) {
+                    while (true) {
+                        long now = System.nanoTime();
+                        flow = next(now);
+                        if (flow != null) {
+                            break;
+                        }
+                        long waitNanos = throttledFor();
+                        if (waitNanos < 0) {
+                            wait();
+                        } else {
+                            wait(Math.max(1, waitNanos / 1_000_000));
+                        }
+                    }
+                    request = flow.queue.poll();
+                    if (flow.queue.isEmpty()) {
+                        ready.remove(flow);
+                    }
+                    virtualTime = request.start;
+                    if (flow.bucket != null) {
+                        flow.bucket.tokens -= request.cost;
+                    }
+                    if (flow.classBucket != null) {
+                        flow.classBucket.tokens -= request.cost;
+                    }
+                    flow.running++;
+                    if (request.blocking) {
+                        blockingRunning++;
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            metrics.recordSince("scheduler.wait", request.enqueued);
+            if (request.throttled) {
+                metrics.counter("scheduler.throttled").increment();
+            }
+            try {
+                request.task.run();
+                request.done.complete(null);
+            } catch (Throwable e) {
+                request.done.completeExceptionally(e);
+            }
+
+            synchronized (this) {
+                flow.running--;
+                if (request.blocking) {
+                    blockingRunning--;
+                }
+                long now = System.nanoTime();
+                if (now - flow.windowStart >= 1_000_000_000L) {
+                    flow.rate = flow.windowCount * 1_000_000_000L / (now - flow.windowStart);
+                    flow.windowStart = now;
+                    flow.windowCount = 0;
+                }
+                flow.windowCount += request.cost;
+                if (request.blocking && !ready.isEmpty()) {
+                    // Any flow may have been waiting for the blocking cap
+                    notifyAll();
+                } else if (!flow.queue.isEmpty()) {
+                    notify();
+                }
+            }
+        }
+    }
+
+    /**
+     * The ready flow whose head request has the lowest start tag, out of those under their concurrency cap and with
+     * tokens to spend. A flow whose head blocks waits while the blocking cap is reached.
+     */
+    private Flow next(long now) {
+        Flow best = null;
+        for (Flow flow : ready) {
+            Request head = flow.queue.peek();
+            if (flow.running >= MAX_PER_CLIENT || (head.blocking && blockingRunning >= MAX_BLOCKING)) {
+                continue;
+            }
+            if ((flow.bucket != null && !flow.bucket.available(now))
+                    || (flow.classBucket != null && !flow.classBucket.available(now))) {
+                head.throttled = true;
+                continue;
+            }
+            if (best == null || head.start < best.queue.peek().start) {
+                best = flow;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * How long until the first throttled flow has tokens again, or -1 if no ready flow is waiting for tokens.
+     */
+    private long throttledFor() {
+        long soonest = -1;
+        for (Flow flow : ready) {
+            long wait = 0;
+            if (flow.bucket != null && flow.bucket.tokens <= 0) {
+                wait = flow.bucket.nanosUntilAvailable();
+            }
+            if (flow.classBucket != null && flow.classBucket.tokens <= 0) {
+                wait = Math.max(wait, flow.classBucket.nanosUntilAvailable());
+            }
+            if (wait > 0 && flow.running < MAX_PER_CLIENT && (soonest < 0 || wait < soonest)) {
+                soonest = wait;
+            }
+        }
+        return soonest;
+    }
+
+    private synchronized long getRate(Flow flow) {
+        long sinceWindow = System.nanoTime() - flow.windowStart;
+        // A flow that has gone quiet has not closed its window
+        return sinceWindow >= 2_000_000_000L ? flow.windowCount * 1_000_000_000L / sinceWindow : flow.rate;
+    }
+
+    private synchronized long getQueued(Flow flow) {
+        return flow.queue.size();
+    }
+
+    private void forgetIdle(long now) {
+        Iterator<Flow> iterator = flows.values().iterator();
+        while (iterator.hasNext()) {
+            Flow flow = iterator.next();
+            if (flow.connections == 0 && flow.running == 0 && flow.queue.isEmpty()
+                    && (!flow.named || now - flow.idleSince > IDLE_MILLIS * 1_000_000)) {
+                iterator.remove();
+                metrics.removeGauge("client." + flow.id + ".rate");
+                metrics.removeGauge("client." + flow.id + ".queued");
+            }
+        }
+    }
+}
@@ -1,33 +1,69 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 public class Controller {
 
+    private static final long RECLAIM_INTERVAL = Long.getLong("controller.reclaimIntervalMillis", 100L);
+    // Tagged requests a connection may have running at once before the Controller stops reading from it
+    private static final int MAX_PIPELINED = Integer.getInteger("controller.pipeline.maxOutstanding", 256);
+    // The tag of the request the current thread is answering, which every reply to it must carry
+    private static final ThreadLocal<String> REPLY_TAG = new ThreadLocal<>();
+
     private final int cport;
     private final int replication;
     private final int timeout;
     private final Rebalancer rebalancer;
-
-    private final Map<Socket, Integer> reloadTries = new ConcurrentHashMap<>();
+    private final Reclaimer reclaimer;
+    private final Metrics metrics;
+    private final MetadataPublisher publisher;
+    private final RepairQueue repairs;
+    private final ClientScheduler scheduler;
+    private final ShardMap shards;
+
+    private final Map<Object, Integer> reloadTries = new ConcurrentHashMap<>(); // By connection, or TaggedLoad when pipelined
+    private final Map<String, AckTracker> activeStores = new ConcurrentHashMap<>();
     protected final Map<Integer, DstoreModel> dstores = new ConcurrentHashMap<>();
-    protected final Map<String, Index> indices = new ConcurrentHashMap<>();
+    protected final IndexMap indices = new IndexMap();
 
     public Controller(int cport, int replication, int timeout, int rebalance) {
+        this(cport, replication, timeout, rebalance, ShardMap.fromProperty(cport));
+    }
+
+    public Controller(int cport, int replication, int timeout, int rebalance, ShardMap shards) {
+        if (shards.indexOf(cport) < 0) {
+            throw new IllegalArgumentException("Controller " + cport + " is not part of the shard map " + shards);
+        }
         this.cport = cport;
         this.replication = replication;
         this.timeout = timeout;
+        this.shards = shards;
+        // Created first since the rebalance timer may fire before the constructor returns
+        metrics = new Metrics("controller-" + cport);
         rebalancer = new Rebalancer(rebalance, this);
+        reclaimer = new Reclaimer(this, RECLAIM_INTERVAL);
+        publisher = new MetadataPublisher(this);
+        repairs = new RepairQueue(this);
+        scheduler = new ClientScheduler(metrics);
+        metrics.gauge("files", indices::size);
+        metrics.gauge("dstores", dstores::size);
+        metrics.gauge("reclaim.pending", reclaimer::getPending);
+        metrics.gauge("replicaSets", ReplicaSet::getInternedCount);
+        metrics.gauge("followers", publisher::getFollowers);
+        metrics.gauge("repair.pending", repairs::getPending);
+        metrics.gauge("rebalance.dirty", rebalancer::getDirtyCount);
     }
 
     public static void main(String[] args) {
@@ -41,11 +77,9 @@ public class Controller {
             new Thread(controller::launchDeadStoreThread).start();
             controller.listen();
         } catch (IndexOutOfBoundsException e) {
-            System.err.println("Command line arguments have not been provided correctly");
-            e.printStackTrace();
+            Log.error("Command line arguments have not been provided correctly", e);
         } catch (NumberFormatException e) {
-            System.err.println("Command line arguments must be integers");
-            e.printStackTrace();
+            Log.error("Command line arguments must be integers", e);
         } catch (Exception e) {
             e.printStackTrace();
             e.printStackTrace();
@@ -53,7 +87,7 @@ public class Controller {
 
     }
 
-    private void launchDeadStoreThread() {
+    void launchDeadStoreThread() {
         while (true) {
             synchronized (dstores) {
                 try {
@@ -63,15 +97,20 @@ public class Controller {
                         Integer key = entry.getKey();
                         DstoreModel dstoreModel = entry.getValue();
                         if (dstoreModel.isDead()) {
-                            System.out.println("Deleting the Dstore " + key + " from the list of Dstores as it is dead");
+                            Log.info(() -> "Deleting the Dstore " + key + " from the list of Dstores as it is dead");
                             iterator.remove(); // Remove the DstoreModel using the iterator
                             synchronized (indices) {
                                 indices.forEach((s, index) -> {
-                                    if (index.getStoredByKeys().contains(dstoreModel.getPort())) {
-                                        index.removeFromStoredBy(dstoreModel.getPort());
+                                    synchronized (index) {
+                                        if (index.getStoredBy().contains(dstoreModel.getPort())) {
+                                            index.removeFromStoredBy(dstoreModel.getPort());
+                                            publisher.publish(index);
+                                            repairs.submit(index);
+                                            rebalancer.markDirty(key);
+                                        }
                                     }
                                 });
-                                System.out.println("\tDeleted the Dstore " + key + " stored dstores are now: " + dstores);
+                                Log.debug(() -> "\tDeleted the Dstore " + key + " stored dstores are now: " + dstores);
                             }
                         }
                     }
@@ -93,18 +132,21 @@ public class Controller {
                         String message = "";
                         message = in.readLine();
                         if (message != null) {
+                            if (message.equals(Protocol.FOLLOW_TOKEN)) {
+                                publisher.addFollower(client);
+                                return;
+                            }
                             if (rebalancer.getIsRebalancing().get()) {rebalancer.addToRequestQueue(new Message(message, client));return;}
-                            String[] splitMessage = message.split(" ");
-                            if (splitMessage[0].equals(Protocol.JOIN_TOKEN)) {
-                                joinDstore(client, splitMessage);
+                            MessageTokenizer tokenizer = new MessageTokenizer(message);
+                            if (MessageTokenizer.startsWithToken(message, Protocol.JOIN_TOKEN)) {
+                                tokenizer.skip();
+                                joinDstore(client, tokenizer.nextInt(), tokenizer);
                             } else {
-                                handleMessage(client, splitMessage);
-                                listenToMessage(client, in);
+                                listenToMessage(client, in, message);
                             }
                         }
                     } catch (IOException e) {
-                        System.err.println("There was an error trying to establish a connection with the client");
-                        e.printStackTrace();
+                        Log.error("There was an error trying to establish a connection with the client", e);
                     }
                 }).start();
             }
@@ -113,130 +155,357 @@ public class Controller {
         }
     }
 
-    private void listenToMessage(Socket client, BufferedReader in) {
-        String clientMessage = "";
+    /**
+     * A LOAD made by a tagged request. Pipelined loads of different files on one connection keep separate counts of
+     * the replicas they have tried, and a RELOAD carries on from the last LOAD of the same file.
+     */
+    private record TaggedLoad(Socket client, String fileName) {
+    }
+
+    /**
+     * Handles the requests of one client connection, starting with the one already read. Each request is run by the
+     * scheduler, under the flow of the client that sent it.
+     * <p>
+     * A plain request is answered before the next line is read. A request sent as TAG id request is pipelined: it is
+     * handed to the scheduler and the next line is read straight away, so many can run at once and finish in any
+     * order, and every reply to it is sent as TAG id reply. Up to controller.pipeline.maxOutstanding tagged requests
+     * run at once per connection, and the connection is only closed once they have all been answered.
+     */
+    private void listenToMessage(Socket client, BufferedReader in, String firstMessage) {
+        ClientScheduler.Flow flow = scheduler.openUnnamed(client.getInetAddress().getHostAddress() + ":" + client.getPort());
+        MessageTokenizer tokenizer = new MessageTokenizer();
+        Semaphore pipelined = new Semaphore(MAX_PIPELINED);
+        boolean tagged = false;
+        String clientMessage = firstMessage;
         try {
-            while ((clientMessage = in.readLine()) != null) {
+            while (clientMessage != null) {
                 if (rebalancer.getIsRebalancing().get()) {rebalancer.addToRequestQueue(new Message(clientMessage, client));return;}
-                String[] splitMessage = clientMessage.split(" ");
-                System.out.println("Client has been connected: " + client.getPort());
-                handleMessage(client, splitMessage);
+                Log.debug(() -> "Client has been connected: " + client.getPort());
+                tokenizer.reset(clientMessage);
+                if (MessageTokenizer.startsWithToken(clientMessage, Protocol.CLIENT_TOKEN)) {
+                    tokenizer.skip();
+                    if (tokenizer.hasNext()) {
+                        ClientScheduler.Flow named = scheduler.open(tokenizer.next(),
+                                tokenizer.hasNext() ? tokenizer.next() : ClientScheduler.DEFAULT_CLASS);
+                        scheduler.close(flow);
+                        flow = named;
+                    } else {
+                        countMalformed(tokenizer);
+                    }
+                } else if (MessageTokenizer.startsWithToken(clientMessage, Protocol.TAG_TOKEN)) {
+                    tagged = true;
+                    tokenizer.skip();
+                    if (tokenizer.hasNext()) {
+                        tokenizer.skip();
+                    }
+                    String message = clientMessage;
+                    String opcode = tokenizer.hasNext() ? tokenizer.nextOpcode() : "";
+                    pipelined.acquire();
+                    scheduler.submit(flow, costOf(opcode, tokenizer), awaitsAcks(opcode),
+                                    () -> handleMessage(client, new MessageTokenizer(message)))
+                            .whenComplete((result, error) -> {
+                                pipelined.release();
+                                if (error != null) {
+                                    Log.error("Pipelined request failed: " + message, error);
+                                }
+                            });
+                } else {
+                    String message = clientMessage;
+                    String opcode = tokenizer.hasNext() ? tokenizer.nextOpcode() : "";
+                    scheduler.submit(flow, costOf(opcode, tokenizer), awaitsAcks(opcode),
+                            () -> handleMessage(client, tokenizer.reset(message))).join();
+                }
+                clientMessage = in.readLine();
             }
         } catch (IOException e) {
-            System.err.println("Error reading client message: " + e.getMessage());
+            Log.error("Error reading client message: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
+            // Let the pipelined requests still running answer before the connection goes
+            pipelined.acquireUninterruptibly(MAX_PIPELINED);
+            scheduler.close(flow);
+            reloadTries.remove(client);
+            if (tagged) {
+                reloadTries.keySet().removeIf(key -> key instanceof TaggedLoad load && load.client() == client);
+            }
             try {
-                System.out.println("Closing the client " + client.getPort());
+                Log.debug(() -> "Closing the client " + client.getPort());
                 in.close();
                 client.close();
             } catch (IOException e) {
-                System.err.println("Error closing client socket: " + e.getMessage());
+                Log.error("Error closing client socket: " + e.getMessage());
             }
         }
     }
 
-    public synchronized void joinDstore(Socket client, String[] splitMessage) {
-        int dPort = Integer.parseInt(splitMessage[1]);
-        System.out.println("Dstore has joined " + dPort);
-        dstores.put(dPort, new DstoreModel(client, dPort, timeout));
+    /**
+     * Adds a Dstore. The rest of its JOIN, when there is any, is its first capacity report.
+     */
+    public synchronized void joinDstore(Socket client, int dPort, MessageTokenizer capacity) {
+        Log.info(() -> "Dstore has joined " + dPort);
+        DstoreModel dstoreModel = new DstoreModel(client, dPort, timeout);
+        if (capacity.hasNext()) {
+            try {
+                dstoreModel.updateCapacity(capacity);
+            } catch (NoSuchElementException | NumberFormatException e) {
+                // The Dstore still joins, and is placed on by file count until it sends a valid report
+                countMalformed(capacity);
+            }
+        }
+        dstoreModel.setProgressListener(this::storeProgress);
+        dstoreModel.setMalformedListener(() -> metrics.counter("errors.malformed").increment());
+        dstores.put(dPort, dstoreModel);
+        rebalancer.markJoined();
         if (!(dstores.size() < replication) && !indices.isEmpty()) {
-            System.out.println(indices);
+            Log.debug(() -> String.valueOf(indices));
             rebalancer.startReBalanceOperation();
         }
     }
 
-    public void handleMessage(Socket client, String[] message) {
-        System.out.println("Message received: " + Arrays.toString(message) + " from: " + client);
+    public void handleMessage(Socket client, MessageTokenizer message) {
+        if (REPLY_TAG.get() == null && MessageTokenizer.startsWithToken(message.getLine().toString(), Protocol.TAG_TOKEN)) {
+            message.skip();
+            if (!message.hasNext()) {
+                countMalformed(message);
+                return;
+            }
+            REPLY_TAG.set(message.next());
+            try {
+                handleMessage(client, message);
+            } finally {
+                REPLY_TAG.remove();
+            }
+            return;
+        }
+        Log.debug(() -> "Message received: " + message.getLine() + " from: " + client);
         if (dstores.size() < replication) {
             send(Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN, client);
-            System.out.println("Not enought Dstores to remove files");
+            Log.debug("Not enought Dstores to remove files");
+            metrics.counter("errors.notEnoughDstores").increment();
             return;
         }
-        switch (message[0]) {
-            // Messages from client
-            case Protocol.LIST_TOKEN -> list(client);
-            case Protocol.STORE_TOKEN -> store(client, message[1], message[2]);
-            case Protocol.LOAD_TOKEN -> load(client, message[1]);
-            case Protocol.RELOAD_TOKEN -> reload(client, message[1]);
-            case Protocol.REMOVE_TOKEN -> remove(client, message[1]);
-            default -> System.out.println("Malformed message received " + Arrays.toString(message));
+        long start = System.nanoTime();
+        try {
+            String opcode = message.nextOpcode();
+            switch (opcode) {
+                // Messages from client
+                case Protocol.LIST_TOKEN -> list(client);
+                case Protocol.LIST_PAGE_TOKEN -> listPage(client, message);
+                case Protocol.STORE_TOKEN -> store(client, message.next(), message.nextLong());
+                case Protocol.LOAD_TOKEN -> {
+                    // A new LOAD on a reused connection starts again from the first replica
+                    String fileName = message.next();
+                    reloadTries.put(loadKey(client, fileName), 0);
+                    load(client, fileName);
+                }
+                case Protocol.RELOAD_TOKEN -> reload(client, message.next());
+                case Protocol.REMOVE_TOKEN -> remove(client, message.next());
+                case Protocol.STORE_BATCH_TOKEN -> storeBatch(client, message);
+                case Protocol.LOAD_BATCH_TOKEN -> loadBatch(client, message);
+                case Protocol.REMOVE_BATCH_TOKEN -> removeBatch(client, message);
+                default -> {
+                    countMalformed(message);
+                    return;
+                }
+            }
+            metrics.recordSince(opcode, start);
+        } catch (NoSuchElementException | NumberFormatException e) {
+            countMalformed(message);
         }
     }
 
-    private void list(Socket client) {
-        System.out.println("Client: " + client.getPort() + " requesting for LIST of files");
-        System.out.println("There are " + indices.size() + " files stored in the Controller");
-        if (indices.isEmpty()) {
-            send(Protocol.LIST_TOKEN, client);
-            System.out.println("Client: " + client.getPort() + " received message: " + Protocol.LIST_TOKEN);
-            return;
+    private void countMalformed(MessageTokenizer message) {
+        Log.debug(() -> "Malformed message received " + message.getLine());
+        metrics.counter("errors.malformed").increment();
+    }
+
+    /**
+     * What a request counts for against its client's fair share and rate limit: one, or one per file for a batch.
+     */
+    private static int costOf(String opcode, MessageTokenizer message) {
+        try {
+            return switch (opcode) {
+                case Protocol.STORE_BATCH_TOKEN, Protocol.LOAD_BATCH_TOKEN, Protocol.REMOVE_BATCH_TOKEN -> Math.max(1, message.nextCount(Protocol.MAX_BATCH));
+                default -> 1;
+            };
+        } catch (NoSuchElementException | NumberFormatException e) {
+            return 1;
         }
+    }
 
-        StringBuilder message = new StringBuilder(Protocol.LIST_TOKEN);
-        synchronized (indices) {
-            indices.forEach((name, dIndex) -> {
-                System.out.println("LIST: File " + name + " has status " + dIndex.getStatus());
-                if (dIndex.getStatus() == Index.Status.STORE_COMPLETE) {
-                    System.out.println("FIle " + dIndex.getFilename() + " being put into LIST");
-                    message.append(" ").append(dIndex.getFilename());
+    /**
+     * Whether the request holds its worker until the Dstores acknowledge it, which the scheduler caps across clients.
+     */
+    private static boolean awaitsAcks(String opcode) {
+        return opcode.equals(Protocol.STORE_TOKEN) || opcode.equals(Protocol.STORE_BATCH_TOKEN);
+    }
+
+    private void list(Socket client) {
+        Log.debug(() -> "Client: " + client.getPort() + " requesting for LIST of files");
+        sendNames(client, Protocol.LIST_TOKEN, "", "", Integer.MAX_VALUE);
+    }
+
+    private void listPage(Socket client, MessageTokenizer message) {
+        int limit = Math.min(message.nextInt(), IndexMap.MAX_PAGE);
+        String prefix = message.next();
+        String startAfter = message.next();
+        sendNames(client, Protocol.LIST_PAGE_TOKEN, prefix.equals("-") ? "" : prefix,
+                startAfter.equals("-") ? "" : startAfter, limit);
+    }
+
+    /**
+     * Writes the names straight out to the client as they are read from the index, so that a long listing is never
+     * held in memory whole. The index is not locked meanwhile; stores and removes that happen during the listing may
+     * or may not show up in it.
+     */
+    private void sendNames(Socket client, String token, String prefix, String startAfter, int limit) {
+        String tag = REPLY_TAG.get();
+        try {
+            int count;
+            synchronized (client) {
+                PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(client.getOutputStream()), 64 * 1024));
+                if (tag != null) {
+                    out.print(Protocol.TAG_TOKEN + " " + tag + " ");
                 }
-            });
+                out.print(token);
+                count = indices.forEachStored(prefix, startAfter, limit, fileName -> {
+                    out.print(' ');
+                    out.print(fileName);
+                });
+                out.println();
+                out.flush();
+            }
+            Log.debug(() -> "Client: " + client.getPort() + " received " + count + " file names");
+        } catch (IOException e) {
+            Log.error("Could not send the file list to the client " + client.getPort(), e);
         }
-        send(String.valueOf(message), client);
-        System.out.println("Client: " + client.getPort() + " received message: " + message);
     }
 
-    private void store(Socket client, String fileName, String fileSize) {
-        System.out.println("Storing the file " + fileName);
+    private void store(Socket client, String fileName, long fileSize) {
+        Log.debug(() -> "Storing the file " + fileName);
         // Step 2: now need to notify client on where to store the files
         try {
-            var file = new Index(Integer.parseInt(fileSize), fileName);
             var message = new StringBuilder(Protocol.STORE_TO_TOKEN);
 
-            if (checkIfFileAlreadyExists(client, file)) {
+            if (!ownsFile(fileName)) {
+                send(Protocol.ERROR_WRONG_SHARD_TOKEN + " " + shards.controllerFor(fileName), client);
+                metrics.counter("errors.wrongShard").increment();
                 return;
             }
 
+            // A file still being reclaimed after a REMOVE is taken over rather than waited for. Its old replicas are
+            // stored over, so that none is left behind once the reclaim is cancelled.
+            var selectedDstores = new ArrayList<DstoreModel>();
+            Index file = reuseTombstone(fileName, fileSize, selectedDstores);
+            if (file == null) {
+                file = new Index(fileSize, fileName);
+                if (checkIfFileAlreadyExists(client, file)) {
+                    return;
+                }
+            }
+
             // Step 3: selecting the DStores to store the file and sending the message to the client
-            // Need a better function to select r DStores. This works for now
-            var selectedDstores = selectDstores(new ArrayList<>());
+            var excluded = new ArrayList<Integer>();
+            selectedDstores.forEach(dstoreModel -> excluded.add(dstoreModel.getPort()));
+            selectedDstores.addAll(selectDstores(excluded, fileSize, replication - selectedDstores.size()));
             for (DstoreModel s : selectedDstores) {
                 message.append(" ").append(s.getPort());
             }
-            CountDownLatch latch = new CountDownLatch(replication);
+            Map<DstoreModel, Set<String>> expected = new HashMap<>();
+            selectedDstores.forEach(dstoreModel -> expected.put(dstoreModel, Set.of(fileName)));
+            Index entry = file;
+            AckTracker tracker = expectACKs(Protocol.STORE_ACK_TOKEN, expected, (dstoreModel, name) -> {
+                synchronized (entry) {
+                    entry.addToStoredBy(dstoreModel.getPort());
+                }
+            });
+            activeStores.put(fileName, tracker);
+            selectedDstores.forEach(dstoreModel -> rebalancer.markDirty(dstoreModel.getPort()));
             send(String.valueOf(message), client);
-            waitForStoreACKs(file, selectedDstores, latch);
 
-            if (latch.await(timeout, TimeUnit.MILLISECONDS)) {
+            boolean stored;
+            try {
+                stored = tracker.await();
+            } finally {
+                activeStores.remove(fileName, tracker);
+            }
+            if (stored) {
                 file.setStatus(Index.Status.STORE_COMPLETE);
+                publisher.publish(file);
                 send(Protocol.STORE_COMPLETE_TOKEN, client);
             } else {
+                cancelACKs(Protocol.STORE_ACK_TOKEN, expected);
                 synchronized (indices) {
                     indices.remove(fileName);
                 }
             }
-        } catch (NumberFormatException e) {
-            System.err.println("There was an error when creating the DIndex file because of invalid fileSize param");
-            e.printStackTrace();
         } catch (Exception e) {
-            System.err.println("There was an unknown error when creating the DIndex to store or when sending the STORE_TO message to client: " + client.getPort());
-            e.printStackTrace();
+            Log.error("There was an unknown error when creating the DIndex to store or when sending the STORE_TO message to client: " + client.getPort(), e);
+        }
+    }
+
+    /**
+     * Takes over the entry of a file that is still being reclaimed after a REMOVE, for a new store of the same name.
+     * The live Dstores holding its old replicas, up to R of them, are added to the selected ones. Returns null if the
+     * name has no tombstone to take over.
+     */
+    private Index reuseTombstone(String fileName, long fileSize, ArrayList<DstoreModel> selected) throws InterruptedException {
+        Index removing = indices.get(fileName);
+        if (removing == null || removing.getStatus() != Index.Status.REMOVE_IN_PROGRESS || !reclaimer.cancel(removing, timeout)) {
+            return null;
+        }
+        ReplicaSet previous;
+        synchronized (indices) {
+            if (indices.get(fileName) != removing) {
+                return null;
+            }
+            synchronized (removing) {
+                previous = removing.getStoredBy();
+                removing.setStoredBy(ReplicaSet.EMPTY);
+                removing.setFilesize(fileSize);
+                removing.setStatus(Index.Status.STORE_IN_PROGRESS);
+            }
+        }
+        for (int i = 0; i < previous.size() && selected.size() < replication; i++) {
+            DstoreModel dstoreModel = dstores.get(previous.get(i));
+            if (dstoreModel != null && !dstoreModel.isDead()) {
+                selected.add(dstoreModel);
+                dstoreModel.addPlannedBytes(fileSize);
+            }
+        }
+        metrics.counter("store.reusedTombstones").increment();
+        return removing;
+    }
+
+    /**
+     * A Dstore is still receiving a resumable upload, so the store is kept alive for another timeout.
+     */
+    private void storeProgress(String fileName) {
+        AckTracker tracker = activeStores.get(fileName);
+        if (tracker != null) {
+            tracker.extend(timeout);
         }
     }
 
+    private Object loadKey(Socket client, String fileName) {
+        return REPLY_TAG.get() == null ? client : new TaggedLoad(client, fileName);
+    }
+
     private void load(Socket client, String fileName) {
-        System.out.println("Loading the file " + fileName);
+        Log.debug(() -> "Loading the file " + fileName);
+        Object key = loadKey(client, fileName);
         synchronized (reloadTries) {
             int tries;
-            if (reloadTries.containsKey(client)) {
-                tries = reloadTries.get(client);
+            if (reloadTries.containsKey(key)) {
+                tries = reloadTries.get(key);
             } else {
                 tries = 0;
-                reloadTries.put(client, 0);
+                reloadTries.put(key, 0);
             }
             AtomicInteger dPort = new AtomicInteger(-1);
             AtomicLong fileSize = new AtomicLong(-1);
-            System.out.println("Looking for " + fileName + " in our server...");
+            Log.debug(() -> "Looking for " + fileName + " in our server...");
             AtomicBoolean errorLoad = new AtomicBoolean(false);
             AtomicBoolean breakPoint = new AtomicBoolean(false);
             synchronized (indices) {
@@ -244,9 +513,9 @@ public class Controller {
                     if (breakPoint.get()) {
                         return;
                     }
-                    if (indexName.equals(fileName) && dIndex.getStoredByKeys().size() > tries) {
-                        Integer port = dIndex.getStoredByKeys().get(tries);
-                        System.out.println("Found the file " + fileName + " it is stored by " + port + " and has fileSize " + dIndex.getFilesize());
+                    if (indexName.equals(fileName) && dIndex.getStatus() == Index.Status.STORE_COMPLETE && dIndex.getStoredBy().size() > tries) {
+                        int port = dIndex.getStoredBy().get(tries);
+                        Log.debug(() -> "Found the file " + fileName + " it is stored by " + port + " and has fileSize " + dIndex.getFilesize());
                         dPort.set(port);
                         fileSize.set(dIndex.getFilesize());
                         breakPoint.set(true);
@@ -259,16 +528,16 @@ public class Controller {
 
             if (!errorLoad.get()) {
                 if (dPort.get() < 0 || fileSize.get() < 0) {
-                    System.out.println("Informing the client that the file " + fileName + " was not found");
+                    Log.debug(() -> "Informing the client that the file " + fileName + " was not found");
                     send(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, client);
                 } else {
-                    System.out.println("Telling the client to get the file " + fileName + " from the DStore " + dPort);
+                    Log.debug(() -> "Telling the client to get the file " + fileName + " from the DStore " + dPort);
                     send(Protocol.LOAD_FROM_TOKEN + " " + dPort + " " + fileSize, client);
                 }
             } else {
                 send(Protocol.ERROR_LOAD_TOKEN, client);
                 synchronized (reloadTries) {
-                    reloadTries.remove(client);
+                    reloadTries.remove(key);
                 }
             }
         }
@@ -276,16 +545,16 @@ public class Controller {
 
     private void reload(Socket client, String fileName) {
         synchronized (reloadTries) {
-            System.out.println("Client had trouble doing the LOAD function, will try performing RELOAD");
-            reloadTries.put(client, reloadTries.get(client) + 1);
+            Log.debug("Client had trouble doing the LOAD function, will try performing RELOAD");
+            Object key = loadKey(client, fileName);
+            reloadTries.put(key, reloadTries.get(key) + 1);
             load(client, fileName);
         }
     }
 
-    private synchronized void remove(Socket client, String fileName) {
-        System.out.println("Removing the file " + fileName);
+    private void remove(Socket client, String fileName) {
+        Log.debug(() -> "Removing the file " + fileName);
         Index index;
-        ArrayList<Integer> storedBy;
 
         synchronized (indices) {
             index = indices.get(fileName);
@@ -293,75 +562,212 @@ public class Controller {
                 send(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN, client);
                 return;
             }
-            storedBy = index.getStoredByKeys();
+            index.setStatus(Index.Status.REMOVE_IN_PROGRESS);
         }
+        publisher.publish(index);
+        index.getStoredBy().forEach(rebalancer::markDirty);
+        reclaimer.submit(index);
+        send(Protocol.REMOVE_COMPLETE_TOKEN, client);
+    }
 
-        CountDownLatch latch = new CountDownLatch(storedBy.size());
-        waitForRemoveACKs(storedBy, fileName, index, latch);
+    private void storeBatch(Socket client, MessageTokenizer message) {
+        int numberOfFiles = message.nextCount(Protocol.MAX_BATCH);
+        Log.debug(() -> "Storing a batch of " + numberOfFiles + " files");
+        var fileNames = new String[numberOfFiles];
+        var fileSizes = new long[numberOfFiles];
+        for (int i = 0; i < numberOfFiles; i++) {
+            fileNames[i] = message.next();
+            fileSizes[i] = message.nextLong();
+        }
+        Map<String, String> results = new LinkedHashMap<>();
+        Map<String, Index> accepted = new LinkedHashMap<>();
+        synchronized (indices) {
+            for (int i = 0; i < numberOfFiles; i++) {
+                String fileName = fileNames[i];
+                long fileSize = fileSizes[i];
+                Index existing = indices.get(fileName);
+                if (!ownsFile(fileName)) {
+                    results.put(fileName, Protocol.ERROR_WRONG_SHARD_TOKEN);
+                } else if ((existing != null && existing.getStatus() != Index.Status.REMOVE_COMPLETE) || accepted.containsKey(fileName)) {
+                    results.put(fileName, Protocol.ERROR_FILE_ALREADY_EXISTS_TOKEN);
+                } else {
+                    Index index = new Index(fileSize, fileName);
+                    indices.put(fileName, index);
+                    accepted.put(fileName, index);
+                    results.put(fileName, Protocol.ERROR_TIMEOUT_TOKEN);
+                }
+            }
+        }
+
+        Map<String, ArrayList<DstoreModel>> placement = placeBatch(accepted.values());
+        if (placement.isEmpty() && !accepted.isEmpty()) {
+            // Too many Dstores are dead to place the files, which no amount of waiting for acks would change
+            synchronized (indices) {
+                accepted.forEach((fileName, index) -> {
+                    indices.remove(fileName, index);
+                    results.put(fileName, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+                });
+            }
+            accepted.clear();
+            metrics.counter("errors.notEnoughDstores").increment();
+        }
+        Map<DstoreModel, Set<String>> filesPerDstore = new HashMap<>();
+        StringBuilder storeTo = new StringBuilder(Protocol.STORE_BATCH_TO_TOKEN).append(" ").append(results.size());
+        results.keySet().forEach(fileName -> {
+            ArrayList<DstoreModel> selected = placement.getOrDefault(fileName, new ArrayList<>());
+            storeTo.append(" ").append(fileName).append(" ").append(selected.size());
+            for (DstoreModel dstoreModel : selected) {
+                storeTo.append(" ").append(dstoreModel.getPort());
+                filesPerDstore.computeIfAbsent(dstoreModel, d -> new HashSet<>()).add(fileName);
+            }
+        });
+        filesPerDstore.keySet().forEach(dstoreModel -> rebalancer.markDirty(dstoreModel.getPort()));
+
+        AckTracker tracker = expectACKs(Protocol.STORE_ACK_TOKEN, filesPerDstore, (dstoreModel, fileName) -> {
+            Index index = accepted.get(fileName);
+            synchronized (index) {
+                index.addToStoredBy(dstoreModel.getPort());
+            }
+        });
+        send(storeTo.toString(), client);
 
         try {
-            System.out.println("Checking that latch has finished");
-            if (latch.await(timeout, TimeUnit.MILLISECONDS)) {
-                synchronized (indices) {
-                    index.setStatus(Index.Status.REMOVE_COMPLETE);
+            if (!tracker.await()) {
+                cancelACKs(Protocol.STORE_ACK_TOKEN, filesPerDstore);
+            }
+        } catch (InterruptedException e) {
+            Log.error("Interrupted while waiting for the Dstores to store the batch", e);
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (indices) {
+            accepted.forEach((fileName, index) -> {
+                if (index.getStoredBy().size() >= replication) {
+                    index.setStatus(Index.Status.STORE_COMPLETE);
+                    publisher.publish(index);
+                    results.put(fileName, Protocol.STORE_COMPLETE_TOKEN);
+                } else {
                     indices.remove(fileName, index);
-                    send(Protocol.REMOVE_COMPLETE_TOKEN, client);
                 }
+            });
+        }
+        send(batchResult(Protocol.STORE_BATCH_COMPLETE_TOKEN, results), client);
+    }
+
+    private void loadBatch(Socket client, MessageTokenizer message) {
+        int numberOfFiles = message.nextCount(Protocol.MAX_BATCH);
+        Log.debug(() -> "Loading a batch of " + numberOfFiles + " files");
+        StringBuilder loadFrom = new StringBuilder(Protocol.LOAD_BATCH_FROM_TOKEN).append(" ").append(numberOfFiles);
+        for (int i = 0; i < numberOfFiles; i++) {
+            String fileName = message.next();
+            Index index = indices.get(fileName);
+            ReplicaSet storedBy = index == null ? ReplicaSet.EMPTY : index.getStoredBy();
+            if (index == null || index.getStatus() != Index.Status.STORE_COMPLETE || storedBy.isEmpty()) {
+                loadFrom.append(" ").append(fileName).append(" -1 -1");
+            } else {
+                // Spread the batch over the replicas instead of always reading from the first one
+                int port = storedBy.get(i % storedBy.size());
+                loadFrom.append(" ").append(fileName).append(" ").append(port).append(" ").append(index.getFilesize());
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            System.err.println("Timed out waiting for remove ACKs");
         }
+        send(loadFrom.toString(), client);
     }
 
-    private void waitForRemoveACKs(ArrayList<Integer> storedBy, String fileName, Index index, CountDownLatch latch) {
-        storedBy.forEach(integer -> {
-            new Thread(() -> {
-                try {
-                    var toSend = Protocol.REMOVE_TOKEN + " " + fileName;
-                    var expected = Protocol.REMOVE_ACK_TOKEN + " " + fileName;
-                    String message = dstores.get(integer).sendAndWaitForResponse(toSend, expected);
-                    System.out.println("REMOVE: Message received: " + message);
-                    if (message != null) {
-                        System.out.println("REMOVE LATCH COUNTING DOWN FOR " + fileName);
-                        synchronized (index) {
-                            index.removeFromStoredBy(integer);
-                        }
-                        latch.countDown();
-                    } else {
-                        System.out.println("Was expecting REMOVE ACK but got: null");
-                    }
-                } catch (DeadStoreException e) {
-                    e.printStackTrace();
+    private void removeBatch(Socket client, MessageTokenizer message) {
+        int numberOfFiles = message.nextCount(Protocol.MAX_BATCH);
+        Log.debug(() -> "Removing a batch of " + numberOfFiles + " files");
+        var fileNames = new String[numberOfFiles];
+        for (int i = 0; i < numberOfFiles; i++) {
+            fileNames[i] = message.next();
+        }
+        Map<String, String> results = new LinkedHashMap<>();
+        var removed = new ArrayList<Index>();
+        synchronized (indices) {
+            for (int i = 0; i < numberOfFiles; i++) {
+                String fileName = fileNames[i];
+                Index index = indices.get(fileName);
+                if (index == null || index.getStatus() != Index.Status.STORE_COMPLETE) {
+                    results.put(fileName, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                    continue;
                 }
-            }).start();
+                index.setStatus(Index.Status.REMOVE_IN_PROGRESS);
+                removed.add(index);
+                results.put(fileName, Protocol.REMOVE_COMPLETE_TOKEN);
+            }
+        }
+        removed.forEach(index -> {
+            publisher.publish(index);
+            index.getStoredBy().forEach(rebalancer::markDirty);
+            reclaimer.submit(index);
         });
+        send(batchResult(Protocol.REMOVE_BATCH_COMPLETE_TOKEN, results), client);
     }
 
-    private void waitForStoreACKs(Index dIndex, ArrayList<DstoreModel> selectedDstores, CountDownLatch latch) {
-        for (DstoreModel dstoreModel : selectedDstores) {
-            new Thread(() -> {
-                try {
-                    String receivedMessage = dstores.get(dstoreModel.getPort()).receive(Protocol.STORE_ACK_TOKEN + " " + dIndex.getFilename());
-                    if (receivedMessage != null) {
-                        try {
-                            dIndex.getStoredBy().put(dstoreModel.getPort(), dstoreModel.getSocket());
-                            latch.countDown();
-                        } catch (Exception e) {
-                            //Log error
-                            System.err.println("Error processing store ack from dstore " + dstoreModel.getPort());
-                            e.printStackTrace();
-                        }
-                    } else {
-                        //Log error
-                        System.err.println("Dstore " + dstoreModel.getPort() + " timed out receiving STORE_ACK for " + dIndex.getFilename());
-                    }
-                } catch (DeadStoreException e) {
-                    System.err.println("Store for " + dIndex.getFilename() + " failed due to dead dstore");
-                    e.printStackTrace();
-                }
-            }).start();
+    /**
+     * Registers the ACK that each Dstore owes for each of its files and returns one tracker covering all of them. The
+     * callback runs on the Dstore's reader thread as each ACK arrives, whether it comes on its own or inside an
+     * aggregated batch ACK.
+     */
+    AckTracker expectACKs(String ackToken, Map<DstoreModel, ? extends Collection<String>> filesPerDstore, BiConsumer<DstoreModel, String> onAck) {
+        int expected = filesPerDstore.values().stream().mapToInt(Collection::size).sum();
+        AckTracker tracker = new AckTracker(expected, timeout);
+        long registered = System.nanoTime();
+        filesPerDstore.forEach((dstoreModel, fileNames) -> fileNames.forEach(fileName ->
+                dstoreModel.expect(ackToken + " " + fileName, () -> {
+                    metrics.recordSince("ackWait." + dstoreModel.getPort(), registered);
+                    onAck.accept(dstoreModel, fileName);
+                    tracker.ack();
+                })));
+        return tracker;
+    }
+
+    void cancelACKs(String ackToken, Map<DstoreModel, ? extends Collection<String>> filesPerDstore) {
+        filesPerDstore.forEach((dstoreModel, fileNames) -> fileNames.forEach(fileName -> dstoreModel.cancelExpected(ackToken + " " + fileName)));
+        // The Dstores may be left with files the index does not expect, which only a sweep would find
+        filesPerDstore.keySet().forEach(dstoreModel -> rebalancer.markUnswept(dstoreModel.getPort()));
+    }
+
+    /**
+     * Places every file of a batch in one pass: each file goes to the R least loaded Dstores, counting the files
+     * already placed earlier in the same batch.
+     */
+    private Map<String, ArrayList<DstoreModel>> placeBatch(Collection<Index> files) {
+        Map<String, ArrayList<DstoreModel>> placement = new HashMap<>();
+        List<DstoreModel> live = new ArrayList<>(dstores.values());
+        live.removeIf(DstoreModel::isDead);
+        if (live.size() < replication) {
+            return placement;
+        }
+        boolean weighted = isWeighted(live);
+        Map<DstoreModel, Double> planned = new HashMap<>();
+        live.forEach(dstoreModel -> planned.put(dstoreModel, load(dstoreModel, 0, weighted)));
+        PriorityQueue<DstoreModel> leastLoaded = new PriorityQueue<>(Comparator.comparing(planned::get));
+        leastLoaded.addAll(live);
+        for (Index file : files) {
+            var selected = new ArrayList<DstoreModel>();
+            while (selected.size() < replication && !leastLoaded.isEmpty()) {
+                selected.add(leastLoaded.poll());
+            }
+            selected.forEach(dstoreModel -> {
+                place(dstoreModel, file.getFilesize());
+                planned.put(dstoreModel, load(dstoreModel, 0, weighted));
+                leastLoaded.add(dstoreModel);
+            });
+            placement.put(file.getFilename(), selected);
         }
+        return placement;
+    }
+
+    static String batchRequest(String token, Collection<String> fileNames) {
+        StringBuilder message = new StringBuilder(token).append(" ").append(fileNames.size());
+        fileNames.forEach(fileName -> message.append(" ").append(fileName));
+        return message.toString();
+    }
+
+    private static String batchResult(String token, Map<String, String> results) {
+        StringBuilder message = new StringBuilder(token).append(" ").append(results.size());
+        results.forEach((fileName, status) -> message.append(" ").append(fileName).append(" ").append(status));
+        return message.toString();
     }
 
     private boolean checkIfFileAlreadyExists(Socket client, Index dIndex) {
@@ -381,62 +787,102 @@ public class Controller {
         }
     }
 
-    private ArrayList<DstoreModel> selectDstores(ArrayList<Integer> excludedDstores) {
-        var dStores = new ArrayList<DstoreModel>();
-        System.out.println("Selecting Dstores...");
-        AtomicInteger i = new AtomicInteger();
-        AtomicInteger numOfFiles = new AtomicInteger(indices.size());
-        System.out.println("Dstores: " + this.dstores);
-        System.out.println("Excluded Dstores: " + excludedDstores);
-        System.out.println("Indicies: " + indices);
-        while (i.get() != replication) {
-            dStores.sort(Comparator.comparing(DstoreModel::getNumberOfFiles));
-            synchronized (dstores) {
-                this.dstores.forEach(((integer, dstoreModel) -> {
-                    if (!excludedDstores.contains(dstoreModel.getPort())) {
-                        float x = replication;
-                        float y = indices.size();
-                        float z = dstores.size();
-                        var floor = Math.floor((x * y) / z);
-                        var ceiling = Math.ceil((x * y) / z);
-                        if (i.get() == replication) {
-                            return;
-                        }
-                        System.out.println("\tFloor: " + x + " * " + y + " / " + z + " = " + floor);
-                        System.out.println("\tCeling: " + x + " * " + y + " / " + z + " = " + ceiling);
-                        System.out.println("\tAmount stored: " + dstoreModel.getNumberOfFiles());
-                        if (dstoreModel.getNumberOfFiles() < floor) {
-                            System.out.println("\tSelected the DStore " + dstoreModel.getPort());
-                            dStores.add(dstoreModel);
-                            i.getAndIncrement();
-                            numOfFiles.getAndIncrement();
-                            return;
-                        }
-                        if (dstoreModel.getNumberOfFiles() >= floor && dstoreModel.getNumberOfFiles() <= ceiling) {
-                            System.out.println("\tSelected the DStore " + dstoreModel.getPort());
-                            dStores.add(dstoreModel);
-                            i.getAndIncrement();
-                            numOfFiles.getAndIncrement();
-                        }
-                    }
-                }));
-            }
+    ArrayList<DstoreModel> selectDstores(ArrayList<Integer> excludedDstores) {
+        return selectDstores(excludedDstores, 0);
+    }
+
+    /**
+     * Picks the R least loaded live Dstores, other than the excluded ones, for a new file of the given size.
+     */
+    ArrayList<DstoreModel> selectDstores(ArrayList<Integer> excludedDstores, long fileSize) {
+        return selectDstores(excludedDstores, fileSize, replication);
+    }
+
+    /**
+     * Picks the given number of least loaded live Dstores in the same way.
+     */
+    ArrayList<DstoreModel> selectDstores(ArrayList<Integer> excludedDstores, long fileSize, int count) {
+        List<DstoreModel> candidates = new ArrayList<>(dstores.values());
+        candidates.removeIf(dstoreModel -> dstoreModel.isDead() || excludedDstores.contains(dstoreModel.getPort()));
+        boolean weighted = isWeighted(candidates);
+        var selected = new ArrayList<DstoreModel>();
+        // Loads change under our feet as other stores are placed, so pick the minimum R times rather than sort
+        while (selected.size() < count && !candidates.isEmpty()) {
+            DstoreModel least = Collections.min(candidates,
+                    Comparator.comparingDouble((DstoreModel dstoreModel) -> load(dstoreModel, fileSize, weighted))
+                            .thenComparingInt(DstoreModel::getNumberOfFiles));
+            candidates.remove(least);
+            selected.add(least);
         }
-        return dStores;
+        selected.forEach(dstoreModel -> place(dstoreModel, fileSize));
+        Log.debug(() -> "Selected Dstores " + selected + " for " + fileSize + " bytes");
+        return selected;
+    }
+
+    /**
+     * Placement balances weighted byte utilisation once every candidate has reported its capacity, and falls back to
+     * the number of files until then.
+     */
+    static boolean isWeighted(Collection<DstoreModel> candidates) {
+        return !candidates.isEmpty() && candidates.stream().allMatch(DstoreModel::hasReportedCapacity);
+    }
+
+    /**
+     * How loaded the Dstore would be with extraBytes more stored on it.
+     */
+    static double load(DstoreModel dstoreModel, long extraBytes, boolean weighted) {
+        return weighted ? dstoreModel.getUtilisation(dstoreModel.getStoredBytes() + extraBytes) : dstoreModel.getNumberOfFiles();
+    }
+
+    private static void place(DstoreModel dstoreModel, long fileSize) {
+        synchronized (dstoreModel) {
+            dstoreModel.setNumberOfFiles(dstoreModel.getNumberOfFiles() + 1);
+        }
+        dstoreModel.addPlannedBytes(fileSize);
     }
 
     private void send(String message, Socket socket) {
+        String tag = REPLY_TAG.get();
         try {
-            PrintWriter socketWriter = new PrintWriter(socket.getOutputStream());
-            socketWriter.print(message);
-            socketWriter.println();
-            socketWriter.flush();
-            System.out.println(message + " sent to " + socket.getPort());
+            // Replies to pipelined requests share the connection, so each line goes out whole
+            synchronized (socket) {
+                PrintWriter socketWriter = new PrintWriter(socket.getOutputStream());
+                if (tag != null) {
+                    socketWriter.print(Protocol.TAG_TOKEN + " " + tag + " ");
+                }
+                socketWriter.print(message);
+                socketWriter.println();
+                socketWriter.flush();
+            }
+            Log.debug(() -> message + " sent to " + socket.getPort());
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Could not send a message to " + socket.getPort(), e);
         }
     }
 
+    /**
+     * True if this Controller's shard owns the file. Each Controller only keeps, stores and rebalances its own files.
+     */
+    public boolean ownsFile(String fileName) {
+        return shards.controllerFor(fileName) == cport;
+    }
+
+    public ShardMap getShards() {
+        return shards;
+    }
+
+    public Rebalancer getRebalancer() {
+        return rebalancer;
+    }
+
+    public MetadataPublisher getPublisher() {
+        return publisher;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
     public int getReplication() {
         return replication;
     }
@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Hash tree over a set of file names, used to find where two copies of the set differ without sending either of them.
+ * <p>
+ * Names are hashed into 16^depth leaf buckets by the top bits of a 64-bit hash. Each leaf digest is the XOR of the
+ * hashes of its names and each inner node is the XOR of its 16 children, so two sets have the same root exactly when
+ * (barring a hash collision) they hold the same names. Comparing level by level and only descending into the nodes
+ * that differ finds the differing buckets in depth + 1 exchanges of digests, after which only the names in those
+ * buckets need to be sent.
+ */
+public final class DigestTree {
+
+    public static final int FANOUT = 16;
+    public static final int MAX_DEPTH = 5;
+
+    private final int depth;
+    private final long[][] levels;
+    private final List<List<String>> buckets; // Created as names arrive
+
+    public DigestTree(int depth) {
+        if (depth < 0 || depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Digest depth must be between 0 and " + MAX_DEPTH + ": " + depth);
+        }
+        this.depth = depth;
+        levels = new long[depth + 1][];
+        for (int level = 0; level <= depth; level++) {
+            levels[level] = new long[1 << (4 * level)];
+        }
+        buckets = new ArrayList<>(Collections.nCopies(levels[depth].length, null));
+    }
+
+    public static DigestTree of(int depth, Iterable<String> fileNames) {
+        DigestTree tree = new DigestTree(depth);
+        fileNames.forEach(tree::add);
+        return tree;
+    }
+
+    /**
+     * Picks a depth that leaves a handful of names in each bucket.
+     */
+    public static int depthFor(int names) {
+        int depth = 0;
+        while (depth < MAX_DEPTH && (long) names > 8L << (4 * depth)) {
+            depth++;
+        }
+        return depth;
+    }
+
+    /**
+     * Adds a name that is not in the tree yet. Adding the same name twice cancels it out.
+     */
+    public void add(String fileName) {
+        long hash = hash(fileName);
+        int bucket = bucketOf(hash);
+        if (buckets.get(bucket) == null) {
+            buckets.set(bucket, new ArrayList<>(4));
+        }
+        buckets.get(bucket).add(fileName);
+        int node = bucket;
+        for (int level = depth; level >= 0; level--) {
+            levels[level][node] ^= hash;
+            node /= FANOUT;
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long digest(int level, int node) {
+        return levels[level][node];
+    }
+
+    public int bucketOf(String fileName) {
+        return bucketOf(hash(fileName));
+    }
+
+    public List<String> bucket(int bucket) {
+        List<String> names = buckets.get(bucket);
+        return names == null ? List.of() : names;
+    }
+
+    private int bucketOf(long hash) {
+        return depth == 0 ? 0 : (int) (hash >>> (64 - 4 * depth));
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters, finished with the SplitMix64 mixer so the top bits are well spread.
+     */
+    static long hash(String fileName) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < fileName.length(); i++) {
+            hash ^= fileName.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 30;
+        hash *= 0xbf58476d1ce4e5b9L;
+        hash ^= hash >>> 27;
+        hash *= 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+}
@@ -0,0 +1,146 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One data directory of a Dstore, normally a disk of its own.
+ * <p>
+ * Every read or write of a file in the directory first takes one of the directory's I/O slots. At most
+ * dstore.disk.concurrency operations run against a disk at once and the rest wait their turn in arrival order, up to
+ * the Dstore timeout. Streams to and from sockets go through {@link #read} and {@link #write} a chunk at a time, so a
+ * slot is only held while the disk itself is busy and never while waiting on a slow peer. Each disk has its own slots,
+ * so a slow or saturated disk only holds up the requests for the files stored on it while the other disks carry on.
+ */
+public class Disk {
+
+    private static final int CONCURRENCY = Integer.getInteger("dstore.disk.concurrency", 4);
+    private static final String UPLOAD_FOLDER = ".uploads";
+
+    // Size of the buffers files are streamed through, and so the most I/O done under one slot
+    public static final int CHUNK_BYTES = 64 * 1024;
+
+    private final File folder;
+    private final Semaphore slots = new Semaphore(CONCURRENCY, true);
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public Disk(File folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Waits for an I/O slot on this disk. Every successful call must be paired with {@link #release()}.
+     */
+    public void acquire(long timeoutMillis) throws IOException {
+        pending.incrementAndGet();
+        try {
+            if (!slots.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                pending.decrementAndGet();
+                throw new IOException("Timed out waiting for the disk " + folder);
+            }
+        } catch (InterruptedException e) {
+            pending.decrementAndGet();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the disk " + folder, e);
+        }
+    }
+
+    public void release() {
+        slots.release();
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Reads the next chunk of a file on this disk into the buffer under an I/O slot. Returns the bytes read, or -1 at
+     * the end of the file.
+     */
+    public int read(InputStream reader, byte[] buffer, long timeoutMillis) throws IOException {
+        acquire(timeoutMillis);
+        try {
+            return reader.read(buffer);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Writes a chunk to a file on this disk under an I/O slot.
+     */
+    public void write(OutputStream writer, byte[] buffer, int length, long timeoutMillis) throws IOException {
+        acquire(timeoutMillis);
+        try {
+            writer.write(buffer, 0, length);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Picks the disk for a new file: the least busy of the disks with room for it, and of those the one with the most
+     * free space. Falls back to the disk with the most free space when none of them has enough.
+     */
+    public static Disk place(List<Disk> disks, long fileSize) {
+        Disk best = null;
+        long bestFree = -1;
+        Disk roomiest = disks.get(0);
+        long roomiestFree = -1;
+        for (Disk disk : disks) {
+            long free = disk.getFreeBytes();
+            if (free > roomiestFree) {
+                roomiest = disk;
+                roomiestFree = free;
+            }
+            if (free <= fileSize) {
+                continue;
+            }
+            if (best == null || disk.getPending() < best.getPending()
+                    || (disk.getPending() == best.getPending() && free > bestFree)) {
+                best = disk;
+                bestFree = free;
+            }
+        }
+        return best != null ? best : roomiest;
+    }
+
+    public File fileFor(String fileName) {
+        return new File(folder, fileName);
+    }
+
+    /**
+     * Where the data of an unfinished resumable upload is kept until the whole file has arrived.
+     */
+    public File uploadFileFor(String uploadId) {
+        File uploads = new File(folder, UPLOAD_FOLDER);
+        uploads.mkdir();
+        return new File(uploads, uploadId);
+    }
+
+    public File[] uploadFiles() {
+        File[] files = new File(folder, UPLOAD_FOLDER).listFiles(File::isFile);
+        return files == null ? new File[0] : files;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Operations running on or waiting for this disk.
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    public long getFreeBytes() {
+        return folder.getUsableSpace();
+    }
+
+    @Override
+    public String toString() {
+        return folder.getPath();
+    }
+}
@@ -3,34 +3,151 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Dstore {
 
+    private static final long CACHE_CAPACITY = Long.getLong("dstore.cache.bytes", 64L * 1024 * 1024);
+    private static final long CACHE_MAX_ENTRY = Long.getLong("dstore.cache.maxEntryBytes", 4L * 1024 * 1024);
+    // Set dstore.storage=segments to keep small files in append-only segment files instead of one OS file each
+    private static final String STORAGE_ENGINE = System.getProperty("dstore.storage", "files");
+    private static final long SMALL_FILE_LIMIT = Long.getLong("dstore.segment.smallFileBytes", 64L * 1024);
+    private static final long SEGMENT_SIZE = Long.getLong("dstore.segment.bytes", 64L * 1024 * 1024);
+    private static final long COMPACTION_INTERVAL = Long.getLong("dstore.segment.compactionMillis", 30000L);
+    private static final String SEGMENT_FOLDER = ".segments";
+    // How long an unfinished resumable upload is kept, and kept alive on the Controller, after its last data arrived
+    private static final long UPLOAD_SESSION = Long.getLong("dstore.upload.sessionMillis", 60000L);
+    // How often the Controllers are told how full this Dstore is, and how much of the load it should take
+    private static final long CAPACITY_REPORT_INTERVAL = Long.getLong("dstore.capacity.reportMillis", 5000L);
+    private static final String WEIGHT = System.getProperty("dstore.weight", "1");
+
     private final int port; // The port the Dstore listens to
-    private final int cport; // The controllers port
+    private final ShardMap shards; // The controllers ports, one per shard
     private int timeout; // Timeout in millisecondsF
-    private final File fileFolder; // Where to store the data locally
+    private final File fileFolder; // Where to store the data locally, the first of the disks
+    private final List<Disk> disks = new ArrayList<>();
+    private final Map<String, Disk> locations = new ConcurrentHashMap<>(); // The disk each stored file is on
+    private final FileLocks fileLocks = new FileLocks();
+    private final Map<String, UploadSession> uploads = new ConcurrentHashMap<>(); // Resumable uploads by upload ID
+    private final AtomicLong diskBytes = new AtomicLong(); // Size of all the files in locations
     private Long amountStored;
-    private Socket cSocket;
-    protected BufferedReader controllerIn;
-    protected PrintWriter controllerOut;
+    private final Socket[] controllerSockets;
+    protected final BufferedReader[] controllerIns;
+    protected final PrintWriter[] controllerOuts;
+    private final HotFileCache cache = new HotFileCache(CACHE_CAPACITY, CACHE_MAX_ENTRY);
+    private final SegmentStore segmentStore;
+    private final Metrics metrics;
+    private final GroupCommitter committer;
+    private final DigestTree[] digests; // The tree each Controller is walking, one per shard
+    private final TierMigrator tiers; // Null unless dstore.tier.fast names a fast tier
+
+    private static class UploadSession {
+        private final String uploadId;
+        private final String fileName;
+        private final long fileSize;
+        private final Disk disk;
+        private final File partial;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private Socket connection; // The connection receiving the upload, if any
 
+        UploadSession(String uploadId, String fileName, long fileSize, Disk disk) {
+            this.uploadId = uploadId;
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.disk = disk;
+            this.partial = disk.uploadFileFor(uploadId);
+        }
+    }
 
     public Dstore(int port, int cport, int timeout, String fileFolderName) throws Exception {
+        this(port, ShardMap.fromProperty(cport), timeout, fileFolderName);
+    }
+
+    public Dstore(int port, ShardMap shards, int timeout, String fileFolderName) throws Exception {
         this.port = port;
-        this.cport = cport;
+        this.shards = shards;
         this.timeout = timeout;
+        controllerSockets = new Socket[shards.size()];
+        controllerIns = new BufferedReader[shards.size()];
+        controllerOuts = new PrintWriter[shards.size()];
+        digests = new DigestTree[shards.size()];
 
-        this.fileFolder = new File(fileFolderName);
-        if (fileFolder.exists() && !fileFolder.isDirectory()) {
-            throw new Exception("Folder name provided exists as a file and not a directory");
-        } else if (!fileFolder.exists()) {
-            System.out.println("New folder being created");
-            if (!fileFolder.mkdir()) throw new Exception("Folder could not be created");
+        // Several folders, one per disk, can be given separated by the path separator, e.g. /disk1/ds:/disk2/ds
+        for (String folderName : fileFolderName.split(File.pathSeparator)) {
+            File folder = new File(folderName);
+            if (folder.exists() && !folder.isDirectory()) {
+                throw new Exception("Folder name provided exists as a file and not a directory");
+            } else if (!folder.exists()) {
+                Log.info("New folder being created");
+                if (!folder.mkdir()) throw new Exception("Folder could not be created");
+            }
+            Disk disk = new Disk(folder);
+            disks.add(disk);
+            for (File file : Objects.requireNonNull(folder.listFiles(File::isFile))) {
+                if (locations.putIfAbsent(file.getName(), disk) == null) {
+                    diskBytes.addAndGet(file.length());
+                }
+            }
+            // Uploads left from before a restart can still be resumed until their session would have expired, and are
+            // kept as sessions of unknown file until then so the keep-alive expires them if nobody does
+            for (File partial : disk.uploadFiles()) {
+                if (partial.getName().startsWith(TierMigrator.PARTIAL_PREFIX)
+                        || System.currentTimeMillis() - partial.lastModified() > UPLOAD_SESSION) {
+                    partial.delete();
+                } else {
+                    UploadSession leftover = new UploadSession(partial.getName(), null, -1, disk);
+                    leftover.lastActivity = partial.lastModified();
+                    uploads.put(leftover.uploadId, leftover);
+                }
+            }
+        }
+        this.fileFolder = disks.get(0).getFolder();
+        segmentStore = STORAGE_ENGINE.equals("segments")
+                ? new SegmentStore(new File(fileFolder, SEGMENT_FOLDER), SEGMENT_SIZE, COMPACTION_INTERVAL)
+                : null;
+        metrics = new Metrics("dstore-" + port);
+        committer = GroupCommitter.fromProperties(metrics);
+        String fastTier = System.getProperty("dstore.tier.fast");
+        if (fastTier != null && !fastTier.isBlank()) {
+            File folder = new File(fastTier.replace("{port}", String.valueOf(port)));
+            if (!folder.isDirectory() && !folder.mkdirs()) {
+                throw new Exception("Fast tier folder could not be created");
+            }
+            Disk fast = new Disk(folder);
+            for (File file : Objects.requireNonNull(folder.listFiles(File::isFile))) {
+                // A copy left behind by a move that was cut short, the capacity copy is the one in use
+                if (locations.putIfAbsent(file.getName(), fast) != null) {
+                    file.delete();
+                } else {
+                    diskBytes.addAndGet(file.length());
+                }
+            }
+            tiers = new TierMigrator(fast, disks, locations, fileLocks, timeout, metrics);
+            metrics.gauge("disk.fast.pending", fast::getPending);
+            metrics.gauge("disk.fast.freeBytes", fast::getFreeBytes);
+        } else {
+            tiers = null;
+        }
+        metrics.gauge("cache.hits", cache::getHits);
+        metrics.gauge("cache.misses", cache::getMisses);
+        metrics.gauge("cache.evictions", cache::getEvictions);
+        metrics.gauge("cache.bytes", cache::getSize);
+        for (int i = 0; i < disks.size(); i++) {
+            Disk disk = disks.get(i);
+            metrics.gauge("disk." + i + ".pending", disk::getPending);
+            metrics.gauge("disk." + i + ".freeBytes", disk::getFreeBytes);
         }
     }
 
@@ -44,21 +161,27 @@ public class Dstore {
             var dStore = new Dstore(port, cport, timeout, fileForlder);
             dStore.listen();
         } catch (NumberFormatException e) {
-            System.err.println("Error with arguments when starting the DStore");
-            e.printStackTrace();
+            Log.error("Error with arguments when starting the DStore", e);
         } catch (IOException e) {
-            System.err.println("Error occurred when creating the Controllers socket inside the DStore");
-            e.printStackTrace();
+            Log.error("Error occurred when creating the Controllers socket inside the DStore", e);
         } catch (Exception e) {
-            System.err.println("Error occurred when creating the DStore due to the folder name having an existing file name");
-            e.printStackTrace();
+            Log.error("Error occurred when creating the DStore due to the folder name having an existing file name", e);
         }
 
     }
 
     public void listen() {
-        joinDstore();
-        new Thread(this::launchControllerThread).start();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            joinDstore(shard);
+            int controller = shard;
+            new Thread(() -> launchControllerThread(controller)).start();
+        }
+        Thread keepAlive = new Thread(this::launchUploadKeepAlive, "upload-keep-alive");
+        keepAlive.setDaemon(true);
+        keepAlive.start();
+        Thread capacityReports = new Thread(this::launchCapacityReports, "capacity-reports");
+        capacityReports.setDaemon(true);
+        capacityReports.start();
         launchClientMessageHandler();
     }
 
@@ -71,8 +194,8 @@ public class Dstore {
                         BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
                         String message = in.readLine();
                         if (message != null) {
-                            System.out.println("Message received: " + message + " from: " + client);
-                            handleMessage(client, message.split(" "));
+                            Log.debug(() -> "Message received: " + message + " from: " + client);
+                            handleMessage(client, new MessageTokenizer(message));
                         }
                     } catch (Exception e) {
                         e.printStackTrace();
@@ -84,13 +207,15 @@ public class Dstore {
         }
     }
 
-    private void launchControllerThread() {
+    private void launchControllerThread(int shard) {
+        MessageTokenizer tokenizer = new MessageTokenizer();
+        Socket cSocket = controllerSockets[shard];
         while (true) {
             try {
-                String message = controllerIn.readLine();
+                String message = controllerIns[shard].readLine();
                 if (message != null) {
-                    System.out.println("Message received: " + message + " from: " + cSocket);
-                    handleMessage(cSocket, message.split(" "));
+                    Log.debug(() -> "Message received: " + message + " from: " + cSocket);
+                    handleMessage(cSocket, tokenizer.reset(message));
                 }
             } catch (Exception e) {
                 e.printStackTrace();
@@ -98,59 +223,64 @@ public class Dstore {
         }
     }
 
-    private void handleMessage(Socket client, String[] message) {
-        switch (message[0]) {
-            // Messages from client
-            case Protocol.STORE_TOKEN -> store(client, message[1], message[2], false);
-            case Protocol.REMOVE_TOKEN -> remove(client, message[1]);
-            case Protocol.LOAD_DATA_TOKEN -> load(client, message[1]);
+    private void handleMessage(Socket client, MessageTokenizer message) {
+        long start = System.nanoTime();
+        try {
+            String opcode = message.nextOpcode();
+            switch (opcode) {
+                // Messages from client
+                case Protocol.STORE_TOKEN -> store(client, message.next(), message.nextLong(), false);
+                case Protocol.REMOVE_TOKEN -> remove(client, message.next());
+                case Protocol.LOAD_DATA_TOKEN -> load(client, message.next());
+                case Protocol.STORE_BATCH_TOKEN -> storeBatch(client, message);
+                case Protocol.LOAD_DATA_BATCH_TOKEN -> loadBatch(client, message);
+                case Protocol.STORE_RESUMABLE_TOKEN -> storeResumable(client, message.next(), message.next(), message.nextLong());
 
-            // Message from controller
-            case Protocol.LIST_TOKEN -> list(client);
-            case Protocol.REBALANCE_TOKEN -> rebalance(message);
-            case Protocol.REBALANCE_STORE_TOKEN -> store(client, message[1], message[2], true);
+                // Message from controller
+                case Protocol.LIST_TOKEN -> list(client);
+                case Protocol.REBALANCE_TOKEN -> rebalance(client, message);
+                case Protocol.REPAIR_TOKEN -> repair(client, message);
+                case Protocol.DIGEST_TOKEN -> digest(client, message);
+                case Protocol.DIGEST_FILES_TOKEN -> digestFiles(client, message);
+                case Protocol.REMOVE_BATCH_TOKEN -> removeBatch(client, message);
+                case Protocol.REBALANCE_STORE_TOKEN -> store(client, message.next(), message.nextLong(), true);
 
-            default -> System.err.println("Malformed message received " + Arrays.toString(message));
+                default -> {
+                    Log.warn("Malformed message received " + message.getLine());
+                    return;
+                }
+            }
+            metrics.recordSince(opcode, start);
+        } catch (NoSuchElementException | NumberFormatException e) {
+            Log.warn("Malformed message received " + message.getLine());
+            metrics.counter("errors.malformed").increment();
         }
     }
 
-    private void store(Socket client, String fileName, String fileSize, boolean isRebalance) {
-        System.out.println("Storing the file " + fileName + " in DStore " + port);
+    private void store(Socket client, String fileName, long fileSize, boolean isRebalance) {
+        Log.debug(() -> "Storing the file " + fileName + " in DStore " + port);
         // Send ACK to the client that we have gotten the message
-        System.out.println("Sending ACK to client to get file contents");
+        Log.debug("Sending ACK to client to get file contents");
         send(Protocol.ACK_TOKEN, client);
 
         try {
-            System.out.println("Storing the file " + fileName + " in the folder " + fileFolder);
-            OutputStream writer = new FileOutputStream(new File(fileFolder, fileName), false);
-            InputStream reader = client.getInputStream();
-
-            //Receive + write file content from client
-            byte[] nextLine = new byte[1000];
-            int len;
-            do {
-                len = reader.readNBytes(nextLine, 0, 1000);
-                writer.write(nextLine, 0, len);
-                writer.flush();
+            Log.debug(() -> "Storing the file " + fileName + " in the folder " + fileFolder);
+            File written = writeFile(fileName, client.getInputStream(), fileSize);
+            Log.debug(() -> "File " + fileName + " is stored in folder " + fileFolder);
+            if (!committer.await(written, timeout)) {
+                return;
             }
-            while (len == 1000);
-            System.out.println("File finished storing closing the InputStream of the client " + client.getPort());
-            writer.close();
-            System.out.println("File " + fileName + " is stored in folder " + fileFolder);
 
             // Send a message to the Controller to notify the file has been stored
             if (isRebalance) {
                 return;
             }
-            System.out.println("Sending ACK to controller");
+            Log.debug("Sending ACK to controller");
             send(Protocol.ACK_TOKEN, client);
 //        send(Protocol.STORE_ACK_TOKEN + " " + fileName, cSocket);
-            synchronized (controllerOut) {
-                controllerOut.println(Protocol.STORE_ACK_TOKEN + " " + fileName);
-            }
+            sendToController(shards.shardOf(fileName), Protocol.STORE_ACK_TOKEN + " " + fileName);
         } catch (IOException e) {
-            System.err.println("There was an error when reading the file contents from the client " + client.getPort());
-            e.printStackTrace();
+            Log.error("There was an error when reading the file contents from the client " + client.getPort(), e);
         } finally {
             try {
                 client.close();
@@ -160,94 +290,341 @@ public class Dstore {
         }
     }
 
-    private void remove(Socket client, String fileName) {
-        System.out.println("Remove of " + fileName + " has been requested by Controller");
+    /**
+     * Receives a file in an upload session that outlives a broken connection. The data is appended to a partial file
+     * named after the client's upload ID, the client is told how much of it has already arrived and sends the rest,
+     * and the file only replaces a stored copy of the same name once it is complete. A client that reconnects takes
+     * the session over from its old connection, which is closed, rather than waiting for that one to time out.
+     */
+    private void storeResumable(Socket client, String uploadId, String fileName, long fileSize) {
+        if (!uploadId.matches("[A-Za-z0-9-]+")) {
+            Log.warn("Malformed upload ID " + uploadId);
+            return;
+        }
+        // A session left from before a restart does not know its file until the client resumes it
+        UploadSession session = uploads.compute(uploadId, (id, existing) ->
+                existing == null || existing.fileName == null ? openUpload(id, fileName, fileSize) : existing);
+        try (client) {
+            synchronized (session) {
+                if (!session.fileName.equals(fileName) || session.fileSize != fileSize) {
+                    send(Protocol.ERROR_UPLOAD_IN_PROGRESS_TOKEN, client);
+                    return;
+                }
+                // A client that reconnects takes over from its old connection, which may not have timed out yet
+                if (session.connection != null) {
+                    session.connection.close();
+                    long deadline = System.currentTimeMillis() + timeout;
+                    while (session.connection != null && System.currentTimeMillis() < deadline) {
+                        session.wait(Math.max(1, deadline - System.currentTimeMillis()));
+                    }
+                    if (session.connection != null) {
+                        send(Protocol.ERROR_UPLOAD_IN_PROGRESS_TOKEN, client);
+                        return;
+                    }
+                }
+                session.connection = client;
+            }
+            try {
+                receiveUpload(client, session);
+            } finally {
+                synchronized (session) {
+                    if (session.connection == client) {
+                        session.connection = null;
+                    }
+                    session.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Log.warn("Upload " + uploadId + " of " + fileName + " broke off after " + session.partial.length() + " of "
+                    + fileSize + " bytes: " + e.getMessage());
+        }
+    }
+
+    private UploadSession openUpload(String uploadId, String fileName, long fileSize) {
+        for (Disk disk : disks) {
+            if (disk.uploadFileFor(uploadId).exists()) {
+                return new UploadSession(uploadId, fileName, fileSize, disk);
+            }
+        }
+        return new UploadSession(uploadId, fileName, fileSize, Disk.place(disks, fileSize));
+    }
+
+    private void receiveUpload(Socket client, UploadSession session) throws IOException {
+        long offset = session.partial.length();
+        if (offset > session.fileSize) {
+            offset = 0;
+        }
+        session.lastActivity = System.currentTimeMillis();
+        send(Protocol.STORE_OFFSET_TOKEN + " " + offset, client);
+        client.setSoTimeout(timeout);
+
+        Disk disk = session.disk;
+        InputStream in = client.getInputStream();
+        try (OutputStream writer = new FileOutputStream(session.partial, offset > 0)) {
+            byte[] buffer = new byte[Disk.CHUNK_BYTES];
+            long remaining = session.fileSize - offset;
+            while (remaining > 0) {
+                int len = in.readNBytes(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (len == 0) {
+                    throw new EOFException("Connection closed while receiving " + session.fileName);
+                }
+                disk.write(writer, buffer, len, timeout);
+                remaining -= len;
+                session.lastActivity = System.currentTimeMillis();
+            }
+        }
+        metrics.counter("bytes.in").add(session.fileSize - offset);
+
+        File file = disk.fileFor(session.fileName);
+        cache.invalidate(session.fileName);
+        fileLocks.startWrite(session.fileName);
         try {
-            Path filePath = new File(fileFolder, fileName).toPath();
-            System.out.println("File " + filePath + " was found, attempting to remove it");
-            if (filePath.toFile().delete()) {
-                System.out.println("Deleted the file: " + filePath);
-                synchronized (controllerOut) {
-                    controllerOut.println(Protocol.REMOVE_ACK_TOKEN + " " + fileName);
+            Disk replaced = locations.get(session.fileName);
+            long replacedLength = replaced == null ? 0 : replaced.fileFor(session.fileName).length();
+            Files.move(session.partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            diskBytes.addAndGet(session.fileSize - replacedLength);
+            Disk previous = locations.put(session.fileName, disk);
+            if (previous != null && previous != disk) {
+                previous.fileFor(session.fileName).delete();
+            }
+            if (segmentStore != null) {
+                segmentStore.remove(session.fileName);
+            }
+        } finally {
+            fileLocks.endWrite(session.fileName);
+        }
+        cache.invalidate(session.fileName);
+        uploads.remove(session.uploadId, session);
+
+        if (committer.await(file, timeout)) {
+            send(Protocol.ACK_TOKEN, client);
+            sendToController(shards.shardOf(session.fileName), Protocol.STORE_ACK_TOKEN + " " + session.fileName);
+        }
+    }
+
+    /**
+     * Tells the Controllers which resumable uploads are still alive, so they keep waiting for them, and drops the
+     * sessions nobody has resumed within dstore.upload.sessionMillis.
+     */
+    private void launchUploadKeepAlive() {
+        long interval = Math.max(100, timeout / 2);
+        while (true) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            uploads.values().forEach(session -> {
+                synchronized (session) {
+                    if (session.connection == null && now - session.lastActivity > UPLOAD_SESSION) {
+                        Log.info(() -> "Upload " + session.uploadId + " of " + session.fileName + " expired");
+                        // Unless a client has just resumed it in a session of its own
+                        if (uploads.remove(session.uploadId, session)) {
+                            session.partial.delete();
+                        }
+                        return;
+                    }
                 }
-            } else {
-                System.out.println("Failed to delete the file " + fileName);
-                synchronized (controllerOut) {
-                    controllerOut.println(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName);
+                if (session.fileName == null) {
+                    return;
                 }
+                sendToController(shards.shardOf(session.fileName),
+                        Protocol.STORE_PROGRESS_TOKEN + " " + session.fileName + " " + session.partial.length());
+            });
+        }
+    }
+
+    private void storeBatch(Socket client, MessageTokenizer message) {
+        int numberOfFiles = message.nextCount(Protocol.MAX_BATCH);
+        // Read the whole header before acknowledging so a malformed batch is rejected up front
+        var fileNames = new String[numberOfFiles];
+        var fileSizes = new long[numberOfFiles];
+        for (int i = 0; i < numberOfFiles; i++) {
+            fileNames[i] = message.next();
+            fileSizes[i] = message.nextLong();
+        }
+        Log.debug(() -> "Storing a batch of " + numberOfFiles + " files in DStore " + port);
+        send(Protocol.ACK_TOKEN, client);
+
+        var stored = new ArrayList<String>();
+        var commits = new ArrayList<CompletableFuture<Void>>();
+        try {
+            InputStream reader = client.getInputStream();
+            for (int i = 0; i < numberOfFiles; i++) {
+                commits.add(committer.commit(writeFile(fileNames[i], reader, fileSizes[i])));
+                stored.add(fileNames[i]);
+            }
+        } catch (IOException e) {
+            Log.error("There was an error when reading the batch contents from the client " + client.getPort(), e);
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                Log.error("Could not close the connection to the client " + client.getPort(), e);
+            }
+        }
+
+        if (!committer.await(commits, timeout)) {
+            return;
+        }
+        // Each Controller is only sent the ACKs for the files its shard owns
+        Map<Integer, List<String>> storedPerShard = new HashMap<>();
+        stored.forEach(fileName -> storedPerShard.computeIfAbsent(shards.shardOf(fileName), s -> new ArrayList<>()).add(fileName));
+        storedPerShard.forEach((shard, acked) -> sendToController(shard, batchMessage(Protocol.STORE_BATCH_ACK_TOKEN, acked)));
+    }
+
+    private void loadBatch(Socket client, MessageTokenizer message) {
+        int numberOfFiles = message.nextCount(Protocol.MAX_BATCH);
+        Log.debug(() -> "DStore " + port + " is loading a batch of " + numberOfFiles + " files");
+        try {
+            OutputStream out = client.getOutputStream();
+            for (int i = 0; i < numberOfFiles; i++) {
+                String fileName = message.next();
+                if (tiers != null) {
+                    tiers.recordAccess(fileName);
+                }
+                if (!transferFile(fileName, out)) {
+                    throw new FileNotFoundException(fileName);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.error("There was an error sending the batch to the client " + client.getPort(), e);
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                Log.error("Could not close the connection to the client " + client.getPort(), e);
+            }
+        }
+    }
+
+    private void removeBatch(Socket controller, MessageTokenizer message) {
+        int numberOfFiles = message.nextCount(Protocol.MAX_BATCH);
+        Log.debug(() -> "Remove of a batch of " + numberOfFiles + " files has been requested by Controller");
+        var removed = new ArrayList<String>();
+        for (int i = 0; i < numberOfFiles; i++) {
+            String fileName = message.next();
+            // A file that is already gone counts as removed so the Controller can drop it from the index
+            deleteFile(fileName);
+            removed.add(fileName);
+        }
+        sendToController(shardOf(controller), batchMessage(Protocol.REMOVE_BATCH_ACK_TOKEN, removed));
+    }
+
+    private static String batchMessage(String token, List<String> fileNames) {
+        var message = new StringBuilder(token).append(" ").append(fileNames.size());
+        fileNames.forEach(fileName -> message.append(" ").append(fileName));
+        return message.toString();
+    }
+
+    private void remove(Socket client, String fileName) {
+        Log.debug(() -> "Remove of " + fileName + " has been requested by Controller");
+        try {
+            Log.debug(() -> "Attempting to remove the file " + fileName);
+            if (deleteFile(fileName)) {
+                Log.debug(() -> "Deleted the file: " + fileName);
+                sendToController(shards.shardOf(fileName), Protocol.REMOVE_ACK_TOKEN + " " + fileName);
+            } else {
+                Log.debug(() -> "Failed to delete the file " + fileName);
+                sendToController(shards.shardOf(fileName), Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN + " " + fileName);
             }
         } catch (Exception e) {
-            System.err.println("An error when trying to delete the file " + fileName + " in Dstore " + port);
-            e.printStackTrace();
+            Log.error("An error when trying to delete the file " + fileName + " in Dstore " + port, e);
         }
     }
 
     private void load(Socket client, String fileName) {
-        System.out.println("DStore " + port + " is loading the file " + fileName);
+        Log.debug(() -> "DStore " + port + " is loading the file " + fileName);
+        if (tiers != null) {
+            tiers.recordAccess(fileName);
+        }
         try {
-            try (FileInputStream reader = new FileInputStream(new File(fileFolder, fileName))) {
-                reader.transferTo(client.getOutputStream());
-            } catch (FileNotFoundException e) {
-                System.out.println("There was no file " + fileName + " inside the dstore");
-                e.printStackTrace();
+            if (!transferFile(fileName, client.getOutputStream())) {
+                Log.debug(() -> "There was no file " + fileName + " inside the dstore");
             }
-            System.out.println("The file " + fileName + " has been transferred to the client " + client.getPort());
+            Log.debug(() -> "The file " + fileName + " has been transferred to the client " + client.getPort());
         } catch (FileNotFoundException e) {
-            System.err.println("There was an error creating the FileInputStream because the " + fileName + " cannot be found in folder " + fileFolder);
-            e.printStackTrace();
+            Log.error("There was an error creating the FileInputStream because the " + fileName + " cannot be found in folder " + fileFolder, e);
         } catch (IOException e) {
-            System.err.println("There was an error getting the OutputStream of the client " + client.getPort());
-            e.printStackTrace();
+            Log.error("There was an error getting the OutputStream of the client " + client.getPort(), e);
         }
     }
 
     private void list(Socket client) {
-        System.out.println("Controller is asking for LIST");
+        Log.debug("Controller is asking for LIST");
         var message = new StringBuilder(Protocol.LIST_TOKEN + " ");
-        if (Objects.requireNonNull(fileFolder.listFiles()).length == 0) {
-            controllerOut.println(message);
-        } else {
-            Arrays.stream(Objects.requireNonNull(fileFolder.listFiles())).forEach(file -> {
-                message.append(file.getName()).append(" ");
+        listStoredFiles().forEach(fileName -> message.append(fileName).append(" "));
+        sendToController(shardOf(client), message.toString());
+    }
+
+    /**
+     * Answers the digests of the requested nodes of the hash tree over the files the asking Controller owns. The tree
+     * is rebuilt whenever a walk starts again from the root, so the deeper levels of one walk all see the same files.
+     */
+    private void digest(Socket controller, MessageTokenizer message) {
+        int shard = shardOf(controller);
+        int depth = message.nextInt();
+        int level = message.nextInt();
+        DigestTree tree = digests[shard];
+        if (level == 0 || tree == null || tree.getDepth() != depth) {
+            Set<String> owned = new LinkedHashSet<>();
+            listStoredFiles().forEach(fileName -> {
+                if (shards.shardOf(fileName) == shard) {
+                    owned.add(fileName);
+                }
             });
-            synchronized (controllerOut) {
-                controllerOut.println(message);
-            }
+            tree = DigestTree.of(depth, owned);
+            digests[shard] = tree;
         }
+        int numberOfNodes = message.nextInt();
+        var reply = new StringBuilder(Protocol.DIGEST_TOKEN).append(' ').append(level).append(' ').append(numberOfNodes);
+        for (int i = 0; i < numberOfNodes; i++) {
+            reply.append(' ').append(Long.toHexString(tree.digest(level, message.nextInt())));
+        }
+        sendToController(shard, reply.toString());
     }
 
-    private void rebalance(String[] message) {
-        System.out.println("Rebalance message received");
+    private void digestFiles(Socket controller, MessageTokenizer message) {
+        int shard = shardOf(controller);
+        DigestTree tree = digests[shard];
+        var reply = new StringBuilder(Protocol.DIGEST_FILES_TOKEN);
+        int numberOfBuckets = message.nextInt();
+        for (int i = 0; i < numberOfBuckets && tree != null; i++) {
+            tree.bucket(message.nextInt()).forEach(fileName -> reply.append(' ').append(fileName));
+        }
+        sendToController(shard, reply.toString());
+    }
+
+    private void rebalance(Socket controller, MessageTokenizer message) {
+        Log.debug("Rebalance message received");
 
         try {
             Map<Integer, ArrayList<String>> toSend = new HashMap<>();
             ArrayList<String> toRemove = new ArrayList<>();
-            int numberToSend = Integer.parseInt(message[1]);
+            int numberToSend = message.nextInt();
             int totalReceivers = 0;
-            int index = 2;
 
             for (int i = 0; i < numberToSend; i++) {
-                String name = message[index];
-                index++;
+                String name = message.next();
 
-                int numberOfReceivers = Integer.parseInt(message[index]);
+                int numberOfReceivers = message.nextInt();
                 totalReceivers += numberOfReceivers;
-                index++;
                 for (int j = 0; j < numberOfReceivers; j++) {
-                    Integer receiver = Integer.parseInt(message[index]);
+                    Integer receiver = message.nextInt();
                     if (!toSend.containsKey(receiver)) {
                         toSend.put(receiver, new ArrayList<String>());
                     }
                     toSend.get(receiver).add(name);
-                    index++;
                 }
             }
 
-            int numberToRemove = Integer.parseInt(message[index]);
-            index++;
+            int numberToRemove = message.nextInt();
             for (int k = 0; k < numberToRemove; k++) {
-                toRemove.add(message[index]);
-                index++;
+                toRemove.add(message.next());
             }
 
             rebalanceRemove(toRemove);
@@ -256,10 +633,10 @@ public class Dstore {
             waitForRebalanceStoreACKs(toSend, latch);
 
             if (latch.await(timeout, TimeUnit.MILLISECONDS)) {
-                System.out.println("Re-balance store successfully completed");
-                controllerOut.println(Protocol.REBALANCE_COMPLETE_TOKEN);
+                Log.debug("Re-balance store successfully completed");
+                sendToController(shardOf(controller), Protocol.REBALANCE_COMPLETE_TOKEN);
             } else {
-                System.out.println("Timed out while waiting for the Dstore responses when performing re-balance");
+                Log.warn("Timed out while waiting for the Dstore responses when performing re-balance");
             }
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -271,23 +648,7 @@ public class Dstore {
             for (String filename : toSend.get(dstore)) {
                 new Thread(() -> {
                     try {
-                        System.out.println("Sending re-balance file " + filename + " to dstore " + dstore);
-                        Socket socket = new Socket(InetAddress.getLocalHost(), dstore);
-                        File file = new File(fileFolder.getPath() + File.separator + filename);
-                        String message = Protocol.REBALANCE_STORE_TOKEN + " " + filename + " " + file.length();
-                        send(message, socket);
-
-                        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                        String receivedMessage = in.readLine();
-                        if (!receivedMessage.equals(Protocol.ACK_TOKEN)) {
-                            System.err.println("Dstore " + dstore + " should have sent ACK but " + port + " received " + receivedMessage);
-                            return;
-                        }
-                        rebalanceSendFileContents(socket, filename);
-                        in.close();
-                        socket.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                        sendFileTo(dstore, filename);
                     } finally {
                         latch.countDown();
                     }
@@ -296,26 +657,63 @@ public class Dstore {
         }
     }
 
+    /**
+     * Copies one of this Dstore's files to another Dstore with REBALANCE_STORE. Returns whether all of it was sent.
+     */
+    private boolean sendFileTo(int dstore, String filename) {
+        Log.debug(() -> "Sending re-balance file " + filename + " to dstore " + dstore);
+        try (Socket socket = new Socket(InetAddress.getLocalHost(), dstore)) {
+            String message = Protocol.REBALANCE_STORE_TOKEN + " " + filename + " " + fileLength(filename);
+            send(message, socket);
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String receivedMessage = in.readLine();
+            if (!Protocol.ACK_TOKEN.equals(receivedMessage)) {
+                Log.error("Dstore " + dstore + " should have sent ACK but " + port + " received " + receivedMessage);
+                return false;
+            }
+            rebalanceSendFileContents(socket, filename);
+            return true;
+        } catch (IOException e) {
+            Log.error("Could not send " + filename + " to Dstore " + dstore, e);
+            return false;
+        }
+    }
+
+    /**
+     * Copies a file to the Dstores the Controller picked to replace lost replicas, then reports REPAIR_COMPLETE. Runs
+     * on a thread of its own so the Controller connection keeps being read meanwhile.
+     */
+    private void repair(Socket controller, MessageTokenizer message) {
+        String filename = message.next();
+        int[] targets = new int[message.nextInt()];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = message.nextInt();
+        }
+        int shard = shardOf(controller);
+        new Thread(() -> {
+            boolean sent = true;
+            for (int target : targets) {
+                sent &= sendFileTo(target, filename);
+            }
+            if (sent) {
+                sendToController(shard, Protocol.REPAIR_COMPLETE_TOKEN + " " + filename);
+            } else {
+                Log.warn("Could not repair " + filename + " onto every Dstore");
+            }
+        }).start();
+    }
+
     private void rebalanceSendFileContents(Socket socket, String filename) throws IOException {
-        byte[] content = new byte[256];
-        int len;
-        FileInputStream fileIn = new FileInputStream(new File(fileFolder, filename));
         OutputStream fileOut = socket.getOutputStream();
-        do {
-            len = fileIn.read(content);
-            if (len >= 0) {
-                fileOut.write(content, 0, len);
-                fileOut.flush();
-            }
-        } while (len > 0);
-        fileIn.close();
+        transferFile(filename, fileOut);
         fileOut.close();
     }
 
     private void rebalanceRemove(ArrayList<String> toRemove) {
         for (String filename : toRemove) {
-            System.out.println("Removing file " + filename);
-            new File(fileFolder, filename).delete();
+            Log.debug(() -> "Removing file " + filename);
+            deleteFile(filename);
         }
     }
 
@@ -425,26 +823,243 @@ public class Dstore {
 //            }
 //        }).start();
 
-    private void joinDstore() {
+    /**
+     * Writes exactly fileSize bytes from the stream. Small files go to the segment store when it is enabled, anything
+     * else gets its own file, and a copy of the same name held by the other engine is dropped. Returns the file the
+     * data ended up in, for the group committer to sync.
+     */
+    private File writeFile(String fileName, InputStream in, long fileSize) throws IOException {
+        cache.invalidate(fileName);
+        metrics.counter("bytes.in").add(fileSize);
+        File written;
+        // Keeps the tier migrator from moving the file away while it is written
+        fileLocks.startWrite(fileName);
         try {
-            Socket cSocket = new Socket(InetAddress.getLocalHost(), cport);
-            this.cSocket = cSocket;
-            controllerIn = new BufferedReader(new InputStreamReader(cSocket.getInputStream()));
-            controllerOut = new PrintWriter(cSocket.getOutputStream(), true);
-            String joinMessage = Protocol.JOIN_TOKEN + " " + port;
-            send(Protocol.JOIN_TOKEN + " " + port, cSocket);
+            if (segmentStore != null && fileSize <= SMALL_FILE_LIMIT) {
+                byte[] data = in.readNBytes((int) fileSize);
+                if (data.length < fileSize) {
+                    throw new EOFException("Connection closed while receiving " + fileName);
+                }
+                segmentStore.put(fileName, data);
+                written = segmentStore.segmentFileFor(fileName);
+                deleteFromDisk(fileName);
+            } else {
+                // An overwrite stays on the disk the file is already on
+                Disk current = locations.get(fileName);
+                Disk disk = current != null ? current : Disk.place(disks, fileSize);
+                File file = disk.fileFor(fileName);
+                long replacedLength = current == null ? 0 : file.length();
+                try (OutputStream writer = new FileOutputStream(file, false)) {
+                    byte[] buffer = new byte[Disk.CHUNK_BYTES];
+                    long remaining = fileSize;
+                    while (remaining > 0) {
+                        int len = in.readNBytes(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (len == 0) {
+                            throw new EOFException("Connection closed while receiving " + fileName);
+                        }
+                        disk.write(writer, buffer, len, timeout);
+                        remaining -= len;
+                    }
+                } catch (IOException e) {
+                    if (current == null) {
+                        file.delete();
+                    }
+                    throw e;
+                }
+                locations.put(fileName, disk);
+                diskBytes.addAndGet(fileSize - replacedLength);
+                written = file;
+                if (segmentStore != null) {
+                    segmentStore.remove(fileName);
+                }
+            }
+        } finally {
+            fileLocks.endWrite(fileName);
+        }
+        // A load racing with the overwrite may have cached a partial copy
+        cache.invalidate(fileName);
+        return written;
+    }
+
+    /**
+     * Sends the file contents to the stream, from the cache when possible. Returns false if the file is not stored.
+     */
+    private boolean transferFile(String fileName, OutputStream out) throws IOException {
+        ByteBuffer cached = cache.get(fileName);
+        Disk disk = locations.get(fileName);
+        if (cached == null) {
+            if (segmentStore != null && segmentStore.contains(fileName)) {
+                long generation = cache.generation(fileName);
+                byte[] data = segmentStore.read(fileName);
+                if (data != null) {
+                    cached = cache.offer(fileName, data, generation);
+                    if (cached == null) {
+                        out.write(data);
+                        out.flush();
+                        metrics.counter("bytes.out").add(data.length);
+                        return true;
+                    }
+                }
+            } else if (disk != null) {
+                disk.acquire(timeout);
+                try {
+                    cached = cache.load(fileName, disk.fileFor(fileName));
+                } catch (NoSuchFileException e) {
+                    // Moved to the other tier since it was looked up, handled below
+                } finally {
+                    disk.release();
+                }
+            }
+        }
+        if (cached != null) {
+            metrics.counter("bytes.out").add(cached.remaining());
+            WritableByteChannel channel = Channels.newChannel(out);
+            while (cached.hasRemaining()) {
+                channel.write(cached);
+            }
+            return true;
+        }
+        if (disk == null) {
+            return false;
+        }
+        try (FileInputStream reader = new FileInputStream(disk.fileFor(fileName))) {
+            byte[] buffer = new byte[Disk.CHUNK_BYTES];
+            int len;
+            while ((len = disk.read(reader, buffer, timeout)) >= 0) {
+                out.write(buffer, 0, len);
+                metrics.counter("bytes.out").add(len);
+            }
+            return true;
+        } catch (FileNotFoundException e) {
+            // Moved to the other tier since it was looked up, or removed
+        }
+        Disk current = locations.get(fileName);
+        return current != null && current != disk && transferFile(fileName, out);
+    }
+
+    private boolean deleteFile(String fileName) {
+        cache.invalidate(fileName);
+        if (tiers != null) {
+            tiers.forget(fileName);
+        }
+        boolean deleted = deleteFromDisk(fileName);
+        if (segmentStore != null) {
+            try {
+                deleted |= segmentStore.remove(fileName);
+            } catch (IOException e) {
+                Log.error("Could not write the removal of " + fileName + " to the segment store", e);
+            }
+        }
+        return deleted;
+    }
+
+    private long fileLength(String fileName) {
+        if (segmentStore != null && segmentStore.contains(fileName)) {
+            return segmentStore.length(fileName);
+        }
+        Disk disk = locations.get(fileName);
+        return disk == null ? 0 : disk.fileFor(fileName).length();
+    }
+
+    private List<String> listStoredFiles() {
+        var fileNames = new ArrayList<String>(locations.keySet());
+        if (segmentStore != null) {
+            fileNames.addAll(segmentStore.fileNames());
+        }
+        return fileNames;
+    }
+
+    private boolean deleteFromDisk(String fileName) {
+        Disk disk = locations.remove(fileName);
+        if (disk == null) {
+            return false;
+        }
+        File file = disk.fileFor(fileName);
+        long length = file.length();
+        if (!file.delete()) {
+            return false;
+        }
+        diskBytes.addAndGet(-length);
+        return true;
+    }
+
+    /**
+     * How many bytes this Dstore stores, how much room its disks have left and its weight, as sent with JOIN and
+     * CAPACITY. Disks that share a file system count its free space once.
+     */
+    private String capacity() {
+        long stored = diskBytes.get() + (segmentStore == null ? 0 : segmentStore.getLiveBytes());
+        Map<FileStore, Long> free = new HashMap<>();
+        for (Disk disk : disks) {
+            try {
+                free.putIfAbsent(Files.getFileStore(disk.getFolder().toPath()), disk.getFreeBytes());
+            } catch (IOException e) {
+                free.put(null, free.getOrDefault(null, 0L) + disk.getFreeBytes());
+            }
+        }
+        long freeBytes = free.values().stream().mapToLong(Long::longValue).sum();
+        return stored + " " + freeBytes + " " + WEIGHT;
+    }
+
+    private void launchCapacityReports() {
+        while (true) {
+            try {
+                Thread.sleep(CAPACITY_REPORT_INTERVAL);
+                String message = Protocol.CAPACITY_TOKEN + " " + capacity();
+                for (int shard = 0; shard < shards.size(); shard++) {
+                    sendToController(shard, message);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Log.error("Could not report the capacity of Dstore " + port, e);
+            }
+        }
+    }
+
+    private void joinDstore(int shard) {
+        try {
+            Socket cSocket = new Socket(InetAddress.getLocalHost(), shards.get(shard));
+            controllerSockets[shard] = cSocket;
+            controllerIns[shard] = new BufferedReader(new InputStreamReader(cSocket.getInputStream()));
+            controllerOuts[shard] = new PrintWriter(cSocket.getOutputStream(), true);
+            send(Protocol.JOIN_TOKEN + " " + port + " " + capacity(), cSocket);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void sendToController(int shard, String message) {
+        PrintWriter controllerOut = controllerOuts[shard];
+        synchronized (controllerOut) {
+            controllerOut.println(message);
+        }
+    }
+
+    private int shardOf(Socket controller) {
+        for (int shard = 0; shard < controllerSockets.length; shard++) {
+            if (controllerSockets[shard] == controller) {
+                return shard;
+            }
+        }
+        throw new IllegalArgumentException("Not a Controller connection: " + controller);
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public HotFileCache getCache() {
+        return cache;
+    }
+
     private void send(String message, Socket socket) {
         try {
             PrintWriter socketWriter = new PrintWriter(socket.getOutputStream());
             socketWriter.print(message);
             socketWriter.println();
             socketWriter.flush();
-            System.out.println(message + " sent to " + socket.getPort());
+            Log.debug(() -> message + " sent to " + socket.getPort());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
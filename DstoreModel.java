@@ -5,8 +5,14 @@ import java.io.PrintWriter;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class DstoreModel {
 
@@ -17,7 +23,15 @@ public class DstoreModel {
     private int timeout;
     private boolean dead;
     private final ArrayList<String> messageQueue;
+    private final Map<String, Runnable> expectedAcks = new ConcurrentHashMap<>();
+    private final MessageTokenizer ackTokenizer = new MessageTokenizer(); // only used by the reader thread
     private int numberOfFiles;
+    private volatile Consumer<String> progressListener = fileName -> {};
+    private volatile Runnable malformedListener = () -> {};
+    private volatile long storedBytes = -1; // -1 until the Dstore first reports its capacity
+    private volatile long freeBytes;
+    private volatile double weight = 1;
+    private final AtomicLong plannedBytes = new AtomicLong(); // Placed on the Dstore since its last report
 
     public DstoreModel(Socket socket, int port, int timeout) {
         this.socket = socket;
@@ -40,15 +54,25 @@ public class DstoreModel {
             String message = null;
             try {
                 message = reader.readLine();
-                System.out.println("Message received: " + message + " from: " + socket);
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Message received: " + message + " from: " + socket);
+                }
                 if(message == null) {
-                    System.out.println("DSTORE DIED");
+                    Log.info("DSTORE DIED");
                     dead = true;
-                } else {
+                    synchronized (messageQueue) {
+                        messageQueue.notifyAll();
+                    }
+                } else if (!dispatchAck(message)) {
                     synchronized (messageQueue) {
                         messageQueue.add(message);
+                        messageQueue.notifyAll();
                     }
                 }
+            } catch (NoSuchElementException | NumberFormatException e) {
+                // Dropped, so that the acks that follow are still read
+                Log.warn("Malformed message from Dstore " + port + ": " + message);
+                malformedListener.run();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -56,14 +80,34 @@ public class DstoreModel {
     }
 
     public String receive(String expectedMessages) throws DeadStoreException {
+        return receive(s -> {
+            if (Objects.equals(expectedMessages, Protocol.LIST_TOKEN)) {
+                return MessageTokenizer.startsWithToken(s, expectedMessages);
+            } else {
+                return s.equals(expectedMessages);
+            }
+        });
+    }
+
+    public String receive(Predicate<String> expectedMessages) throws DeadStoreException {
         if (!dead) {
             String receivedMessage = null;
             var start = System.currentTimeMillis();
             var end = start + timeout;
             while(receivedMessage == null && System.currentTimeMillis() < end) {
-                receivedMessage = getMessageFromQueue(expectedMessages);
+                synchronized (messageQueue) {
+                    receivedMessage = getMessageFromQueue(expectedMessages);
+                    if (receivedMessage == null && !dead) {
+                        try {
+                            messageQueue.wait(Math.max(1, end - System.currentTimeMillis()));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return null;
+                        }
+                    }
+                }
                 if (dead) {
-                    System.out.println("Dstore " + port + " has dies during the receive method");
+                    Log.info(() -> "Dstore " + port + " has dies during the receive method");
                     throw new DeadStoreException(String.valueOf(this.getPort()));
                 }
             }
@@ -73,9 +117,31 @@ public class DstoreModel {
         }
     }
 
+    public void send(String message) throws DeadStoreException {
+        if (dead) {
+            throw new DeadStoreException("Tried to send but DStore is dead");
+        }
+        synchronized(writer) {
+            writer.println(message);
+            writer.flush();
+        }
+    }
+
     public String sendAndWaitForResponse(String message, String expectedMessages) throws DeadStoreException {
         if (dead) {
-            System.out.println("Dstore " + port + " has dies during the send and receive method");
+            Log.info(() -> "Dstore " + port + " has dies during the send and receive method");
+            throw new DeadStoreException("Tried to send and receive but DStore is dead");
+        }
+        synchronized(writer) {
+            writer.println(message);
+            writer.flush();
+        }
+        return receive(expectedMessages);
+    }
+
+    public String sendAndWaitForResponse(String message, Predicate<String> expectedMessages) throws DeadStoreException {
+        if (dead) {
+            Log.info(() -> "Dstore " + port + " has dies during the send and receive method");
             throw new DeadStoreException("Tried to send and receive but DStore is dead");
         }
         synchronized(writer) {
@@ -94,15 +160,55 @@ public class DstoreModel {
 //        return receive(expected);
 //    }
 
-    private String getMessageFromQueue(String expectedMessages) {
+    /**
+     * Registers a callback for an ACK this Dstore is expected to send, keyed by the single-file form of the message
+     * (e.g. "STORE_ACK file"). The reader thread runs the callback when the ACK arrives, including when it arrives as
+     * part of an aggregated batch ACK.
+     */
+    public void expect(String ack, Runnable onAck) {
+        expectedAcks.put(ack, onAck);
+    }
+
+    public void cancelExpected(String ack) {
+        expectedAcks.remove(ack);
+    }
+
+    private boolean dispatchAck(String message) {
+        MessageTokenizer tokenizer = ackTokenizer.reset(message);
+        if (!tokenizer.hasNext()) {
+            return false;
+        }
+        String token = tokenizer.nextOpcode();
+        switch (token) {
+            case Protocol.STORE_ACK_TOKEN, Protocol.REMOVE_ACK_TOKEN, Protocol.REPAIR_COMPLETE_TOKEN -> fireExpected(message);
+            case Protocol.STORE_PROGRESS_TOKEN -> progressListener.accept(tokenizer.next());
+            case Protocol.CAPACITY_TOKEN -> updateCapacity(tokenizer);
+            case Protocol.STORE_BATCH_ACK_TOKEN, Protocol.REMOVE_BATCH_ACK_TOKEN -> {
+                String single = token.equals(Protocol.STORE_BATCH_ACK_TOKEN) ? Protocol.STORE_ACK_TOKEN : Protocol.REMOVE_ACK_TOKEN;
+                tokenizer.skip();
+                while (tokenizer.hasNext()) {
+                    fireExpected(single + " " + tokenizer.next());
+                }
+            }
+            default -> {
+                return false;
+            }
+        }
+        // ACKs nobody is waiting for any more are late and are dropped rather than queued forever
+        return true;
+    }
+
+    private void fireExpected(String ack) {
+        Runnable onAck = expectedAcks.remove(ack);
+        if (onAck != null) {
+            onAck.run();
+        }
+    }
+
+    private String getMessageFromQueue(Predicate<String> expectedMessages) {
         AtomicReference<String> returnVal = new AtomicReference<>(null);
         synchronized (messageQueue) {
-            messageQueue.stream().filter(s -> {
-                if (Objects.equals(expectedMessages, Protocol.LIST_TOKEN)) {
-                    return s.split(" ")[0].equals(expectedMessages);
-                } else {
-                    return s.equals(expectedMessages);
-                }}).findFirst().ifPresent(returnVal::set);
+            messageQueue.stream().filter(expectedMessages).findFirst().ifPresent(returnVal::set);
             messageQueue.remove(returnVal.get());
         }
         return returnVal.get();
@@ -136,6 +242,20 @@ public class DstoreModel {
         return messageQueue;
     }
 
+    /**
+     * Called on the reader thread with the file name of every STORE_PROGRESS this Dstore sends.
+     */
+    public void setProgressListener(Consumer<String> progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Called on the reader thread for each message from the Dstore that could not be parsed.
+     */
+    public void setMalformedListener(Runnable malformedListener) {
+        this.malformedListener = malformedListener;
+    }
+
     public int getNumberOfFiles() {
         return numberOfFiles;
     }
@@ -143,4 +263,52 @@ public class DstoreModel {
     public void setNumberOfFiles(int numberOfFiles) {
         this.numberOfFiles = numberOfFiles;
     }
+
+    /**
+     * Reads a capacity report: the bytes the Dstore stores, the free bytes left on its disks and its weight.
+     */
+    public void updateCapacity(MessageTokenizer tokenizer) {
+        long stored = tokenizer.nextLong();
+        long free = tokenizer.nextLong();
+        double reportedWeight = Double.parseDouble(tokenizer.next());
+        if (stored < 0 || free < 0 || !(reportedWeight > 0) || Double.isInfinite(reportedWeight)) {
+            throw new NumberFormatException("Capacity out of range: " + stored + " " + free + " " + reportedWeight);
+        }
+        weight = reportedWeight;
+        freeBytes = free;
+        storedBytes = stored;
+        plannedBytes.set(0);
+    }
+
+    public boolean hasReportedCapacity() {
+        return storedBytes >= 0;
+    }
+
+    public long getStoredBytes() {
+        return storedBytes + plannedBytes.get();
+    }
+
+    public long getCapacityBytes() {
+        return Math.max(0, storedBytes) + freeBytes;
+    }
+
+    public double getWeight() {
+        return weight;
+    }
+
+    /**
+     * Counts a file placed on the Dstore until its next capacity report includes it.
+     */
+    public void addPlannedBytes(long bytes) {
+        plannedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * The share of its capacity the Dstore would use with the given bytes stored on it, divided by its weight, so that
+     * a Dstore of weight 2 is filled to twice the share of one of weight 1 before it counts as equally loaded.
+     */
+    public double getUtilisation(long bytes) {
+        long capacity = getCapacityBytes();
+        return capacity <= 0 || weight <= 0 ? Double.MAX_VALUE : bytes / (weight * capacity);
+    }
 }
@@ -0,0 +1,69 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the writes running on each file of a Dstore, so the tier migrator never switches a file to another disk while
+ * it is being written, or after it was rewritten during the copy.
+ * <p>
+ * Names are striped over a fixed number of locks. Each stripe has a version that changes whenever a write of one of
+ * its files starts or ends, so a mover that saw the same version before and after its copy, with no write running,
+ * knows the file it copied is still the current one. Files sharing a stripe only make such a check fail more often.
+ */
+public class FileLocks {
+
+    private static final int STRIPES = 256;
+
+    private final Object[] locks = new Object[STRIPES];
+    private final long[] versions = new long[STRIPES];
+    private final Map<String, Integer> writing = new ConcurrentHashMap<>();
+
+    public FileLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * The lock to hold while checking and changing where the file is stored.
+     */
+    public Object lockFor(String fileName) {
+        return locks[stripe(fileName)];
+    }
+
+    /**
+     * Counts a write of the file as started. Every call must be paired with {@link #endWrite(String)}.
+     */
+    public void startWrite(String fileName) {
+        int stripe = stripe(fileName);
+        synchronized (locks[stripe]) {
+            writing.merge(fileName, 1, Integer::sum);
+            versions[stripe]++;
+        }
+    }
+
+    public void endWrite(String fileName) {
+        int stripe = stripe(fileName);
+        synchronized (locks[stripe]) {
+            writing.computeIfPresent(fileName, (name, writes) -> writes == 1 ? null : writes - 1);
+            versions[stripe]++;
+        }
+    }
+
+    /**
+     * The version of the file's stripe. Only meaningful while holding {@link #lockFor(String)}.
+     */
+    public long version(String fileName) {
+        return versions[stripe(fileName)];
+    }
+
+    /**
+     * True if a write of the file is running. Only meaningful while holding {@link #lockFor(String)}.
+     */
+    public boolean isWriting(String fileName) {
+        return writing.containsKey(fileName);
+    }
+
+    private static int stripe(String fileName) {
+        return (fileName.hashCode() & Integer.MAX_VALUE) % STRIPES;
+    }
+}
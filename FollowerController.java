@@ -0,0 +1,299 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Read-only Controller that follows the primary's index and answers LIST, LOAD and RELOAD itself.
+ * <p>
+ * The follower connects to the primary with FOLLOW, loads the snapshot it is sent and then applies the primary's
+ * changes as they arrive. Clients talk to it exactly as they would to the primary. Everything that changes the index,
+ * such as STORE and REMOVE, is relayed to the primary over a connection of its own and the primary's replies are passed
+ * back. Reads are only served locally while the follower has heard from the primary within
+ * controller.follower.maxStalenessMillis; when the primary has been silent for longer they are relayed as well.
+ * <p>
+ * Run with {@code java FollowerController <port> <primary cport> <timeout>}.
+ */
+public class FollowerController {
+
+    private static final long MAX_STALENESS = Long.getLong("controller.follower.maxStalenessMillis", 5000L);
+    private static final long RECONNECT_DELAY = 1000;
+
+    private final int port;
+    private final int cport;
+    private final int timeout;
+    private final IndexMap indices = new IndexMap();
+    private final Map<Socket, Integer> reloadTries = new ConcurrentHashMap<>();
+    private final Metrics metrics;
+
+    private volatile boolean synced;
+    private volatile long lastContact;
+    private volatile int dstores;
+    private volatile int replication;
+
+    public FollowerController(int port, int cport, int timeout) {
+        this.port = port;
+        this.cport = cport;
+        this.timeout = timeout;
+        metrics = new Metrics("follower-" + port);
+        metrics.gauge("files", indices::size);
+        metrics.gauge("stalenessMillis", () -> System.currentTimeMillis() - lastContact);
+    }
+
+    public static void main(String[] args) {
+        try {
+            int port = Integer.parseInt(args[0]);
+            int cport = Integer.parseInt(args[1]);
+            int timeout = Integer.parseInt(args[2]);
+            new FollowerController(port, cport, timeout).start();
+        } catch (IndexOutOfBoundsException e) {
+            Log.error("Command line arguments have not been provided correctly", e);
+        } catch (NumberFormatException e) {
+            Log.error("Command line arguments must be integers", e);
+        }
+    }
+
+    public void start() {
+        Thread follower = new Thread(this::followPrimary, "follow-primary");
+        follower.setDaemon(true);
+        follower.start();
+        listen();
+    }
+
+    public boolean isFresh() {
+        return synced && System.currentTimeMillis() - lastContact <= MAX_STALENESS;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    private void followPrimary() {
+        MessageTokenizer tokenizer = new MessageTokenizer();
+        while (true) {
+            try (Socket primary = new Socket(InetAddress.getLoopbackAddress(), cport)) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(primary.getInputStream()));
+                PrintWriter out = new PrintWriter(primary.getOutputStream(), true);
+                out.println(Protocol.FOLLOW_TOKEN);
+                Set<String> snapshot = new HashSet<>();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lastContact = System.currentTimeMillis();
+                    snapshot = apply(tokenizer.reset(line), snapshot);
+                }
+            } catch (IOException e) {
+                Log.debug(() -> "Lost the primary Controller on " + cport + ": " + e.getMessage());
+            } catch (NoSuchElementException | NumberFormatException e) {
+                // The index may have missed the change, so drop the connection and take a new snapshot
+                Log.warn("Malformed message from the primary Controller on " + cport + ", resynchronising: " + tokenizer.getLine());
+                metrics.counter("errors.malformed").increment();
+            }
+            synced = false;
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies one change from the primary. While the snapshot is being loaded the names it contains are collected, so
+     * that entries removed on the primary while this follower was disconnected can be dropped once it is complete.
+     * Returns the names still to collect, or null once the follower is in sync.
+     */
+    private Set<String> apply(MessageTokenizer message, Set<String> snapshot) {
+        switch (message.nextOpcode()) {
+            case Protocol.METADATA_UPDATE_TOKEN -> {
+                String fileName = message.next();
+                Index index = new Index(message.nextLong(), fileName);
+                int[] ports = new int[replication > 0 ? replication : 4];
+                int count = 0;
+                while (message.hasNext()) {
+                    if (count == ports.length) {
+                        ports = Arrays.copyOf(ports, count * 2);
+                    }
+                    ports[count++] = message.nextInt();
+                }
+                index.setStoredBy(ReplicaSet.of(Arrays.copyOf(ports, count)));
+                index.setStatus(Index.Status.STORE_COMPLETE);
+                indices.put(fileName, index);
+                if (snapshot != null) {
+                    snapshot.add(fileName);
+                }
+            }
+            case Protocol.METADATA_REMOVE_TOKEN -> indices.remove(message.next());
+            case Protocol.METADATA_SYNCED_TOKEN -> {
+                if (snapshot != null) {
+                    indices.keySet().retainAll(snapshot);
+                }
+                synced = true;
+                Log.info(() -> "Follower " + port + " is in sync with the primary on " + cport + " (" + indices.size() + " files)");
+                return null;
+            }
+            case Protocol.METADATA_HEARTBEAT_TOKEN -> {
+                dstores = message.nextInt();
+                replication = message.nextInt();
+            }
+            default -> Log.warn("Unknown message from the primary Controller: " + message.getLine());
+        }
+        return snapshot;
+    }
+
+    private void listen() {
+        try (ServerSocket server = new ServerSocket(port)) {
+            while (true) {
+                Socket client = server.accept();
+                new Thread(() -> serve(client)).start();
+            }
+        } catch (IOException e) {
+            Log.error("Follower " + port + " stopped accepting clients", e);
+        }
+    }
+
+    private void serve(Socket client) {
+        Relay relay = null;
+        try (client) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+            MessageTokenizer tokenizer = new MessageTokenizer();
+            String line;
+            while ((line = in.readLine()) != null) {
+                long start = System.nanoTime();
+                tokenizer.reset(line);
+                String opcode = tokenizer.hasNext() ? tokenizer.nextOpcode() : "";
+                boolean local = isFresh() && (opcode.equals(Protocol.LIST_TOKEN) || opcode.equals(Protocol.LIST_PAGE_TOKEN)
+                        || opcode.equals(Protocol.LOAD_TOKEN) || opcode.equals(Protocol.RELOAD_TOKEN));
+                if (local) {
+                    try {
+                        answer(client, out, opcode, tokenizer);
+                        metrics.recordSince(opcode, start);
+                        continue;
+                    } catch (NoSuchElementException | NumberFormatException e) {
+                        metrics.counter("errors.malformed").increment();
+                        continue;
+                    }
+                }
+                if (relay == null) {
+                    relay = new Relay(out);
+                }
+                relay.forward(line);
+                metrics.counter("relayed").increment();
+            }
+        } catch (IOException e) {
+            Log.debug(() -> "Client connection closed: " + e.getMessage());
+        } finally {
+            reloadTries.remove(client);
+            if (relay != null) {
+                relay.close();
+            }
+        }
+    }
+
+    private void answer(Socket client, PrintWriter out, String opcode, MessageTokenizer message) {
+        if (dstores < replication) {
+            send(out, Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+        switch (opcode) {
+            case Protocol.LIST_TOKEN -> sendNames(out, Protocol.LIST_TOKEN, "", "", Integer.MAX_VALUE);
+            case Protocol.LIST_PAGE_TOKEN -> {
+                int limit = Math.min(message.nextInt(), IndexMap.MAX_PAGE);
+                String prefix = message.next();
+                String startAfter = message.next();
+                sendNames(out, Protocol.LIST_PAGE_TOKEN, prefix.equals("-") ? "" : prefix,
+                        startAfter.equals("-") ? "" : startAfter, limit);
+            }
+            case Protocol.LOAD_TOKEN -> {
+                reloadTries.put(client, 0);
+                load(client, out, message.next());
+            }
+            default -> {
+                reloadTries.merge(client, 1, Integer::sum);
+                load(client, out, message.next());
+            }
+        }
+    }
+
+    private void load(Socket client, PrintWriter out, String fileName) {
+        Index index = indices.get(fileName);
+        if (index == null) {
+            send(out, Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+            return;
+        }
+        int tries = reloadTries.getOrDefault(client, 0);
+        ReplicaSet storedBy = index.getStoredBy();
+        if (tries >= storedBy.size()) {
+            send(out, Protocol.ERROR_LOAD_TOKEN);
+        } else {
+            send(out, Protocol.LOAD_FROM_TOKEN + " " + storedBy.get(tries) + " " + index.getFilesize());
+        }
+    }
+
+    private void sendNames(PrintWriter out, String token, String prefix, String startAfter, int limit) {
+        synchronized (out) {
+            out.print(token);
+            indices.forEachStored(prefix, startAfter, limit, fileName -> {
+                out.print(' ');
+                out.print(fileName);
+            });
+            out.println();
+        }
+    }
+
+    private static void send(PrintWriter out, String message) {
+        synchronized (out) {
+            out.println(message);
+        }
+    }
+
+    /**
+     * Connection to the primary for one client. Lines from the client are forwarded as they are and everything the
+     * primary answers, including the second reply of a STORE, is copied back to the client.
+     */
+    private class Relay {
+        private final Socket primary;
+        private final PrintWriter toPrimary;
+
+        Relay(PrintWriter toClient) throws IOException {
+            primary = new Socket();
+            primary.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), cport), timeout);
+            toPrimary = new PrintWriter(primary.getOutputStream(), true);
+            BufferedReader fromPrimary = new BufferedReader(new InputStreamReader(primary.getInputStream()));
+            Thread copier = new Thread(() -> {
+                try {
+                    String reply;
+                    while ((reply = fromPrimary.readLine()) != null) {
+                        send(toClient, reply);
+                    }
+                } catch (IOException e) {
+                    // Closed together with the client connection
+                }
+            });
+            copier.setDaemon(true);
+            copier.start();
+        }
+
+        void forward(String line) {
+            toPrimary.println(line);
+        }
+
+        void close() {
+            try {
+                primary.close();
+            } catch (IOException e) {
+                Log.error("Could not close the relay to the primary Controller on " + cport, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes a Dstore's writes durable before they are acknowledged.
+ * <p>
+ * The mode is set with dstore.durability:
+ * <ul>
+ *     <li>none - files are left to the OS to flush, as before (the default)</li>
+ *     <li>sync - every file and its directory are fsynced on the storing thread</li>
+ *     <li>group - written files are queued and a commit thread fsyncs them together once the oldest has waited
+ *     dstore.groupCommit.intervalMillis or dstore.groupCommit.maxFiles are queued, syncing each directory once per
+ *     batch. Each store waits only for the batch it is in.</li>
+ * </ul>
+ * The time each store spends waiting is recorded in the durability.wait histogram, and durability.files divided by
+ * durability.syncs gives the average batch size.
+ */
+public class GroupCommitter {
+
+    public enum Mode { NONE, SYNC, GROUP }
+
+    private final Mode mode;
+    private final long interval;
+    private final int maxFiles;
+    private final Metrics metrics;
+    private final List<PendingFile> pending = new ArrayList<>();
+
+    private record PendingFile(File file, CompletableFuture<Void> durable) {
+    }
+
+    public GroupCommitter(Mode mode, long interval, int maxFiles, Metrics metrics) {
+        this.mode = mode;
+        this.interval = interval;
+        this.maxFiles = maxFiles;
+        this.metrics = metrics;
+        if (mode == Mode.GROUP) {
+            Thread committer = new Thread(this::commitLoop, "group-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    public static GroupCommitter fromProperties(Metrics metrics) {
+        return new GroupCommitter(Mode.valueOf(System.getProperty("dstore.durability", "none").toUpperCase()),
+                Long.getLong("dstore.groupCommit.intervalMillis", 5L),
+                Integer.getInteger("dstore.groupCommit.maxFiles", 256), metrics);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns a future that completes once the written file is durable, or fails if it could not be synced.
+     */
+    public CompletableFuture<Void> commit(File file) {
+        if (file == null) {
+            // Removed again while it was being written
+            return CompletableFuture.completedFuture(null);
+        }
+        switch (mode) {
+            case NONE -> {
+                return CompletableFuture.completedFuture(null);
+            }
+            case SYNC -> {
+                long start = System.nanoTime();
+                try {
+                    sync(List.of(file));
+                    return CompletableFuture.completedFuture(null);
+                } catch (IOException e) {
+                    return CompletableFuture.failedFuture(e);
+                } finally {
+                    metrics.recordSince("durability.wait", start);
+                }
+            }
+            default -> {
+                long start = System.nanoTime();
+                CompletableFuture<Void> durable = new CompletableFuture<>();
+                synchronized (pending) {
+                    pending.add(new PendingFile(file, durable));
+                    pending.notifyAll();
+                }
+                return durable.whenComplete((v, e) -> metrics.recordSince("durability.wait", start));
+            }
+        }
+    }
+
+    /**
+     * Waits for the file to be durable. Returns false, after logging why, if it could not be synced in time.
+     */
+    public boolean await(File file, long timeout) {
+        return await(List.of(commit(file)), timeout);
+    }
+
+    public boolean await(List<CompletableFuture<Void>> commits, long timeout) {
+        try {
+            CompletableFuture.allOf(commits.toArray(CompletableFuture<?>[]::new)).get(timeout, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (Exception e) {
+            Log.error("Stored files could not be made durable: " + e);
+            return false;
+        }
+    }
+
+    private void commitLoop() {
+        while (true) {
+            List<PendingFile> batch;
+            try {
+                synchronized (pending) {
+                    while (pending.isEmpty()) {
+                        pending.wait();
+                    }
+                    long deadline = System.currentTimeMillis() + interval;
+                    long remaining;
+                    while (pending.size() < maxFiles && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        pending.wait(remaining);
+                    }
+                    batch = new ArrayList<>(pending);
+                    pending.clear();
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<File> files = new ArrayList<>(batch.size());
+            batch.forEach(pendingFile -> files.add(pendingFile.file()));
+            try {
+                sync(files);
+                batch.forEach(pendingFile -> pendingFile.durable().complete(null));
+            } catch (IOException e) {
+                batch.forEach(pendingFile -> pendingFile.durable().completeExceptionally(e));
+            }
+        }
+    }
+
+    /**
+     * Fsyncs every file, then each of their directories once so the new directory entries are durable too.
+     */
+    private void sync(List<File> files) throws IOException {
+        Set<File> directories = new LinkedHashSet<>();
+        // Small files share segment files, which only need syncing once
+        for (File file : new LinkedHashSet<>(files)) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (NoSuchFileException e) {
+                // Removed again before the commit, so there is nothing left to make durable
+                continue;
+            }
+            directories.add(file.getAbsoluteFile().getParentFile());
+        }
+        for (File directory : directories) {
+            try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+                channel.force(true);
+            } catch (IOException e) {
+                // Some platforms cannot open or sync a directory; the file contents are still durable
+                Log.debug(() -> "Could not sync the directory " + directory + ": " + e.getMessage());
+            }
+        }
+        metrics.counter("durability.syncs").increment();
+        metrics.counter("durability.files").add(files.size());
+    }
+}
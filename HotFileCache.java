@@ -0,0 +1,270 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded off-heap cache for the files a Dstore serves most often.
+ * <p>
+ * File contents are held in direct ByteBuffers so they do not add to the heap. Eviction is a segmented LRU: new
+ * entries go into a probation segment and are promoted to the protected segment on their second hit. When probation
+ * is full a candidate is only admitted if a small frequency sketch says it is requested more often than the entry it
+ * would evict, so a one-off scan of cold files cannot flush the hot set.
+ * <p>
+ * Every invalidation bumps the generation of the file name, and a buffer is only admitted if its name's generation is
+ * the one it had before the contents were read. A load that races with an overwrite or a delete therefore never caches
+ * the stale, partial or deleted contents it may have read.
+ */
+public class HotFileCache {
+
+    private static final double PROTECTED_RATIO = 0.8;
+    // Generations are striped by name hash to stay a fixed size; a collision only drops an admission
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final long capacity;
+    private final long maxEntrySize;
+    private final long protectedCapacity;
+
+    private final LinkedHashMap<String, ByteBuffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, ByteBuffer> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch = new FrequencySketch();
+    private final long[] generations = new long[GENERATION_STRIPES];
+    private long probationSize;
+    private long protectedSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public HotFileCache(long capacity, long maxEntrySize) {
+        this.capacity = capacity;
+        // Entries are single ByteBuffers, so nothing larger than an int can be cached
+        this.maxEntrySize = Math.min(Math.min(maxEntrySize, capacity), Integer.MAX_VALUE);
+        this.protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+    }
+
+    /**
+     * Returns a read-only view of the cached contents of the file, or null if the file is not cached.
+     */
+    public synchronized ByteBuffer get(String fileName) {
+        sketch.increment(fileName);
+        ByteBuffer buffer = protectedSegment.get(fileName);
+        if (buffer == null) {
+            buffer = probation.remove(fileName);
+            if (buffer != null) {
+                probationSize -= buffer.capacity();
+                promote(fileName, buffer);
+            }
+        }
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads the file into a direct buffer and offers it to the cache. Returns the buffer so the caller can serve the
+     * current request from it, or null if the file is too big to be cached.
+     */
+    public ByteBuffer load(String fileName, File file) throws IOException {
+        long generation = generation(fileName);
+        long size = file.length();
+        if (capacity <= 0 || size > maxEntrySize) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading until the buffer is full or the file ends
+            }
+        }
+        buffer.flip();
+        admit(fileName, buffer, generation);
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies already loaded contents into a direct buffer and offers it to the cache, in the same way as load. The
+     * generation must have been taken with {@link #generation(String)} before the contents were read.
+     */
+    public ByteBuffer offer(String fileName, byte[] data, long generation) {
+        if (capacity <= 0 || data.length > maxEntrySize) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        admit(fileName, buffer, generation);
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public synchronized long generation(String fileName) {
+        return generations[stripe(fileName)];
+    }
+
+    public synchronized void invalidate(String fileName) {
+        generations[stripe(fileName)]++;
+        remove(fileName);
+    }
+
+    private void remove(String fileName) {
+        ByteBuffer buffer = probation.remove(fileName);
+        if (buffer != null) {
+            probationSize -= buffer.capacity();
+        }
+        buffer = protectedSegment.remove(fileName);
+        if (buffer != null) {
+            protectedSize -= buffer.capacity();
+        }
+    }
+
+    private synchronized void admit(String fileName, ByteBuffer buffer, long generation) {
+        if (generations[stripe(fileName)] != generation) {
+            return;
+        }
+        remove(fileName);
+        long size = buffer.capacity();
+        // Pick every probation victim the candidate needs before evicting any, so a rejected candidate evicts nothing
+        int frequency = sketch.frequency(fileName);
+        ArrayList<String> victims = new ArrayList<>();
+        long freed = 0;
+        for (Map.Entry<String, ByteBuffer> victim : probation.entrySet()) {
+            if (probationSize + protectedSize - freed + size <= capacity) {
+                break;
+            }
+            if (frequency <= sketch.frequency(victim.getKey())) {
+                return;
+            }
+            victims.add(victim.getKey());
+            freed += victim.getValue().capacity();
+        }
+        for (String victim : victims) {
+            evict(probation, victim);
+        }
+        while (probationSize + protectedSize + size > capacity && !protectedSegment.isEmpty()) {
+            evict(protectedSegment, protectedSegment.keySet().iterator().next());
+        }
+        probation.put(fileName, buffer);
+        probationSize += size;
+    }
+
+    private void promote(String fileName, ByteBuffer buffer) {
+        protectedSegment.put(fileName, buffer);
+        protectedSize += buffer.capacity();
+        // Demote the least recently used protected entries back into probation
+        Iterator<Map.Entry<String, ByteBuffer>> iterator = protectedSegment.entrySet().iterator();
+        while (protectedSize > protectedCapacity && iterator.hasNext()) {
+            Map.Entry<String, ByteBuffer> entry = iterator.next();
+            if (entry.getKey().equals(fileName)) {
+                continue;
+            }
+            iterator.remove();
+            protectedSize -= entry.getValue().capacity();
+            probation.put(entry.getKey(), entry.getValue());
+            probationSize += entry.getValue().capacity();
+        }
+    }
+
+    private static int stripe(String fileName) {
+        return (fileName.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    private void evict(Map<String, ByteBuffer> segment, String fileName) {
+        ByteBuffer buffer = segment.remove(fileName);
+        if (segment == probation) {
+            probationSize -= buffer.capacity();
+        } else {
+            protectedSize -= buffer.capacity();
+        }
+        evictions.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getSize() {
+        return probationSize + protectedSize;
+    }
+
+    public synchronized int getEntries() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    @Override
+    public String toString() {
+        return "HotFileCache{hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+                + ", entries=" + getEntries() + ", bytes=" + getSize() + "/" + capacity + "}";
+    }
+
+    /**
+     * Count-min sketch of recent request frequencies with 4-bit style saturation. The counters are halved once enough
+     * increments have been recorded so that old popularity fades out.
+     */
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int WIDTH = 1 << 12;
+        private static final int MAX_COUNT = 15;
+        private static final int RESET_AFTER = WIDTH * 10;
+
+        private final byte[][] counters = new byte[DEPTH][WIDTH];
+        private int additions;
+
+        void increment(String key) {
+            int hash = spread(key.hashCode());
+            for (int i = 0; i < DEPTH; i++) {
+                int slot = index(hash, i);
+                if (counters[i][slot] < MAX_COUNT) {
+                    counters[i][slot]++;
+                }
+            }
+            if (++additions >= RESET_AFTER) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = spread(key.hashCode());
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, counters[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        private void reset() {
+            for (byte[] row : counters) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>= 1;
+                }
+            }
+            additions = 0;
+        }
+
+        private static int index(int hash, int row) {
+            int h = hash * (0x9E3779B9 + (row << 1));
+            return (h >>> 20) & (WIDTH - 1);
+        }
+
+        private static int spread(int hash) {
+            hash ^= hash >>> 16;
+            hash *= 0x45d9f3b;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
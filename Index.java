@@ -1,13 +1,8 @@
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-
 public class Index {
 
     private String filename;
     private long filesize;
-    private Map<Integer, Socket> storedBy = new HashMap<>();
+    private volatile ReplicaSet storedBy = ReplicaSet.EMPTY;
     private Status status;
 
 
@@ -32,36 +27,20 @@ public class Index {
         this.filesize = filesize;
     }
 
-    public Map<Integer, Socket> getStoredBy() {
+    public ReplicaSet getStoredBy() {
         return storedBy;
     }
 
-    public void setStoredBy(Map<Integer, Socket> storedBy) {
+    public void setStoredBy(ReplicaSet storedBy) {
         this.storedBy = storedBy;
     }
 
-    public ArrayList<Integer> getStoredByKeys() {
-        var x = new ArrayList<Integer>();
-        storedBy.forEach((integer, socket) -> {
-            x.add(integer);
-        });
-        return x;
-    }
-
-    public ArrayList<Socket> getStoredByValues() {
-        var x = new ArrayList<Socket>();
-        storedBy.forEach((integer, socket) -> {
-            x.add(socket);
-        });
-        return x;
-    }
-
-    public void removeFromStoredBy(Integer dstore) {
-        storedBy.remove(dstore);
+    public void removeFromStoredBy(int dstore) {
+        storedBy = storedBy.without(dstore);
     }
 
-    public void addToStoredBy(Integer dstore, Socket socket) {
-        storedBy.put(dstore, socket);
+    public void addToStoredBy(int dstore) {
+        storedBy = storedBy.with(dstore);
     }
 
     public Status getStatus() {
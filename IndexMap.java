@@ -0,0 +1,87 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The Controller's index, kept sorted by file name so that LIST can be served a page at a time.
+ * <p>
+ * A skip list counts its entries by walking them, which would make every placement decision linear in the number of
+ * files, so the size is tracked as entries are added and removed. Only put, putIfAbsent and the two remove methods
+ * (which iterator removals also go through) keep the count, so the index must not be changed through the other
+ * mutators.
+ */
+public class IndexMap extends ConcurrentSkipListMap<String, Index> {
+
+    private static final long serialVersionUID = 1L;
+
+    // The most names a single LIST_PAGE reply may hold, whatever limit the client asks for
+    public static final int MAX_PAGE = Integer.getInteger("controller.list.maxPage", 10000);
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    @Override
+    public Index put(String fileName, Index index) {
+        Index previous = super.put(fileName, index);
+        if (previous == null) {
+            size.incrementAndGet();
+        }
+        return previous;
+    }
+
+    @Override
+    public Index putIfAbsent(String fileName, Index index) {
+        Index previous = super.putIfAbsent(fileName, index);
+        if (previous == null) {
+            size.incrementAndGet();
+        }
+        return previous;
+    }
+
+    @Override
+    public Index remove(Object fileName) {
+        Index removed = super.remove(fileName);
+        if (removed != null) {
+            size.decrementAndGet();
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean remove(Object fileName, Object index) {
+        boolean removed = super.remove(fileName, index);
+        if (removed) {
+            size.decrementAndGet();
+        }
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        keySet().forEach(this::remove);
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Passes the names of up to limit stored files that start with the prefix and sort after startAfter, in order.
+     * Either may be empty. Returns how many names were passed.
+     */
+    public int forEachStored(String prefix, String startAfter, int limit, Consumer<String> action) {
+        String from = startAfter.compareTo(prefix) > 0 ? startAfter : prefix;
+        int count = 0;
+        for (Map.Entry<String, Index> entry : tailMap(from, !from.equals(startAfter)).entrySet()) {
+            if (count >= limit || !entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (entry.getValue().getStatus() == Index.Status.STORE_COMPLETE) {
+                action.accept(entry.getKey());
+                count++;
+            }
+        }
+        return count;
+    }
+}
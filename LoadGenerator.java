@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multi-client load generator.
+ * <p>
+ * Starts a Controller and Dstores in this JVM, or connects to a running Controller when load.cport is set, stores an
+ * initial set of files and then has a number of client threads run a weighted mix of STORE, LOAD, REMOVE and LIST
+ * operations back to back. At the end it prints the throughput and latency percentiles of every operation.
+ * <p>
+ * Settings are system properties:
+ * <ul>
+ *     <li>load.cport - port of a running Controller; a local cluster is started when it is not set. Against a sharded
+ *     cluster controller.shards lists every Controller</li>
+ *     <li>load.controllers, load.dstores, load.replication, load.rebalanceMillis - shape of the local cluster
+ *     (1, 3, 2, 60000)</li>
+ *     <li>load.threads - number of concurrent clients (16)</li>
+ *     <li>load.mix - operation weights, e.g. store=20,load=70,remove=5,list=5</li>
+ *     <li>load.sizes - file sizes in bytes: fixed:N, uniform:MIN-MAX or pareto:MIN-MAX (fixed:65536)</li>
+ *     <li>load.files - number of files stored before the run (1000)</li>
+ *     <li>load.warmupSeconds, load.durationSeconds - warm-up and measured run length (5, 30)</li>
+ *     <li>load.timeout - client and cluster timeout in milliseconds (10000)</li>
+ * </ul>
+ * Run with {@code java -Dlog.level=WARN -cp .:client.jar LoadGenerator}.
+ */
+public class LoadGenerator {
+
+    private static final String STORE = "store";
+    private static final String LOAD = "load";
+    private static final String REMOVE = "remove";
+    private static final String LIST = "list";
+
+    private final AsyncClient client;
+    private final int threads;
+    private final Map<String, Integer> mix;
+    private final int totalWeight;
+    private final SizeDistribution sizes;
+    private final byte[] contents;
+
+    // Files known to be stored, looked up by a random id for loads and removes
+    private final Map<Long, String> files = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+
+    private volatile Map<String, OperationStats> stats;
+    private volatile boolean running = true;
+
+    private static class OperationStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+    }
+
+    public LoadGenerator(AsyncClient client, int threads, Map<String, Integer> mix, SizeDistribution sizes) {
+        this.client = client;
+        this.threads = threads;
+        this.mix = mix;
+        this.totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+        this.sizes = sizes;
+        this.contents = new byte[sizes.max()];
+        new Random(1).nextBytes(contents);
+        resetStats();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int timeout = Integer.getInteger("load.timeout", 10000);
+        Integer cport = Integer.getInteger("load.cport");
+        ShardMap shards;
+        if (cport == null) {
+            LocalCluster cluster = LocalCluster.start(Integer.getInteger("load.controllers", 1), Integer.getInteger("load.dstores", 3),
+                    Integer.getInteger("load.replication", 2), timeout, Integer.getInteger("load.rebalanceMillis", 60000));
+            shards = cluster.getShards();
+        } else {
+            shards = ShardMap.fromProperty(cport);
+        }
+        int threads = Integer.getInteger("load.threads", 16);
+        Map<String, Integer> mix = parseMix(System.getProperty("load.mix", "store=20,load=70,remove=5,list=5"));
+        SizeDistribution sizes = SizeDistribution.parse(System.getProperty("load.sizes", "fixed:65536"));
+
+        try (AsyncClient client = new AsyncClient(shards, timeout, threads)) {
+            LoadGenerator generator = new LoadGenerator(client, threads, mix, sizes);
+            generator.populate(Integer.getInteger("load.files", 1000));
+            generator.run(Long.getLong("load.warmupSeconds", 5L) * 1000, Long.getLong("load.durationSeconds", 30L) * 1000);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Stores the initial working set, a few files at a time per client thread.
+     */
+    public void populate(int count) throws Exception {
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pending.add(storeNew());
+            if (pending.size() == threads) {
+                CompletableFuture.allOf(pending.toArray(CompletableFuture<?>[]::new)).join();
+                pending.clear();
+            }
+        }
+        CompletableFuture.allOf(pending.toArray(CompletableFuture<?>[]::new)).join();
+        System.out.println("Stored " + files.size() + " files before the run");
+    }
+
+    public void run(long warmupMillis, long durationMillis) throws InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "load-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+        Thread.sleep(warmupMillis);
+        resetStats();
+        long start = System.nanoTime();
+        Thread.sleep(durationMillis);
+        Map<String, OperationStats> measured = stats;
+        long elapsed = System.nanoTime() - start;
+        running = false;
+        for (Thread worker : workers) {
+            worker.join(1000);
+        }
+        report(measured, elapsed);
+    }
+
+    private void work() {
+        while (running) {
+            String operation = pickOperation();
+            OperationStats operationStats = stats.get(operation);
+            long start = System.nanoTime();
+            try {
+                switch (operation) {
+                    case STORE -> storeNew().get();
+                    case LOAD -> load();
+                    case REMOVE -> remove();
+                    default -> client.list().get();
+                }
+                operationStats.latency.recordNanos(System.nanoTime() - start);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                operationStats.errors.increment();
+            }
+        }
+    }
+
+    private CompletableFuture<Void> storeNew() {
+        long id = nextId.getAndIncrement();
+        String fileName = "load-" + id;
+        int size = sizes.next(ThreadLocalRandom.current());
+        return client.store(fileName, Arrays.copyOf(contents, size)).thenRun(() -> files.put(id, fileName));
+    }
+
+    private void load() throws Exception {
+        Map.Entry<Long, String> file = randomFile();
+        if (file != null) {
+            client.load(file.getValue()).get();
+        }
+    }
+
+    private void remove() throws Exception {
+        Map.Entry<Long, String> file = randomFile();
+        // Take the file out first so no other client loads or removes it while it goes
+        if (file != null && files.remove(file.getKey(), file.getValue())) {
+            client.remove(file.getValue()).get();
+        }
+    }
+
+    private Map.Entry<Long, String> randomFile() {
+        long bound = nextId.get();
+        for (int attempt = 0; attempt < 16 && bound > 0; attempt++) {
+            long id = ThreadLocalRandom.current().nextLong(bound);
+            String fileName = files.get(id);
+            if (fileName != null) {
+                return Map.entry(id, fileName);
+            }
+        }
+        return null;
+    }
+
+    private String pickOperation() {
+        int choice = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            choice -= entry.getValue();
+            if (choice < 0) {
+                return entry.getKey();
+            }
+        }
+        return LIST;
+    }
+
+    private void resetStats() {
+        Map<String, OperationStats> fresh = new LinkedHashMap<>();
+        for (String operation : List.of(STORE, LOAD, REMOVE, LIST)) {
+            fresh.put(operation, new OperationStats());
+        }
+        stats = fresh;
+    }
+
+    private void report(Map<String, OperationStats> measured, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        System.out.printf("%n%d clients, mix %s, sizes %s, %.1f s%n", threads, mix, sizes, seconds);
+        System.out.printf("%-8s %10s %8s %10s %10s %10s %10s %10s%n",
+                "op", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (Map.Entry<String, OperationStats> entry : measured.entrySet()) {
+            LatencyHistogram latency = entry.getValue().latency;
+            total += latency.getCount();
+            System.out.printf("%-8s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(), latency.getCount(),
+                    entry.getValue().errors.sum(), latency.getCount() / seconds, latency.getPercentile(0.5) / 1000.0,
+                    latency.getPercentile(0.99) / 1000.0, latency.getPercentile(0.999) / 1000.0, latency.getMax() / 1000.0);
+        }
+        System.out.printf("%-8s %10d %8s %10.1f%n", "total", total, "", total / seconds);
+    }
+
+    static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split("=");
+            String operation = pair[0].toLowerCase();
+            if (!List.of(STORE, LOAD, REMOVE, LIST).contains(operation)) {
+                throw new IllegalArgumentException("Unknown operation in load.mix: " + pair[0]);
+            }
+            weights.put(operation, Integer.parseInt(pair[1]));
+        }
+        if (weights.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("load.mix needs at least one positive weight");
+        }
+        return weights;
+    }
+
+    /**
+     * File sizes to store: a fixed size, uniform between two sizes, or a Pareto distribution (alpha 1.2) between two
+     * sizes, which gives mostly small files with a long tail of large ones.
+     */
+    record SizeDistribution(String kind, int min, int max) {
+
+        private static final double PARETO_ALPHA = 1.2;
+
+        static SizeDistribution parse(String spec) {
+            String[] parts = spec.split(":");
+            String[] bounds = parts.length > 1 ? parts[1].split("-") : new String[0];
+            return switch (parts[0]) {
+                case "fixed" -> new SizeDistribution("fixed", Integer.parseInt(bounds[0]), Integer.parseInt(bounds[0]));
+                case "uniform", "pareto" -> new SizeDistribution(parts[0], Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]));
+                default -> throw new IllegalArgumentException("Unknown size distribution in load.sizes: " + spec);
+            };
+        }
+
+        int next(Random random) {
+            return switch (kind) {
+                case "uniform" -> min + random.nextInt(max - min + 1);
+                case "pareto" -> (int) Math.min(max, min / Math.pow(1 - random.nextDouble(), 1 / PARETO_ALPHA));
+                default -> min;
+            };
+        }
+
+        @Override
+        public String toString() {
+            return kind.equals("fixed") ? kind + ":" + min : kind + ":" + min + "-" + max;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Runs one or more sharded Controllers and a number of Dstores inside the current JVM on free loopback ports, each
+ * Dstore with its own folder under a temporary directory that is deleted when the JVM exits. Used by the load generator
+ * and the benchmarks so they do not need a cluster started by hand.
+ */
+public class LocalCluster {
+
+    private final List<Controller> controllers;
+    private final ShardMap shards;
+    private final File folder;
+
+    private LocalCluster(List<Controller> controllers, ShardMap shards, File folder) {
+        this.controllers = controllers;
+        this.shards = shards;
+        this.folder = folder;
+    }
+
+    public static LocalCluster start(int dstores, int replication, int timeout, int rebalancePeriod) throws Exception {
+        return start(1, dstores, replication, timeout, rebalancePeriod);
+    }
+
+    /**
+     * Starts the Controllers, each owning one shard of the namespace, then the Dstores, and returns once every Dstore
+     * has joined every Controller.
+     */
+    public static LocalCluster start(int shardCount, int dstores, int replication, int timeout, int rebalancePeriod) throws Exception {
+        int[] cports = new int[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            cports[i] = freePort();
+        }
+        ShardMap shards = new ShardMap(cports);
+        List<Controller> controllers = new ArrayList<>();
+        for (int cport : cports) {
+            Controller controller = new Controller(cport, replication, timeout, rebalancePeriod, shards);
+            new Thread(controller::launchDeadStoreThread).start();
+            new Thread(controller::listen).start();
+            waitForPort(cport);
+            controllers.add(controller);
+        }
+
+        File folder = Files.createTempDirectory("local-cluster").toFile();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteRecursively(folder.toPath())));
+        for (int i = 0; i < dstores; i++) {
+            int port = freePort();
+            Dstore dstore = new Dstore(port, shards, timeout, new File(folder, "dstore" + port).getPath());
+            new Thread(dstore::listen).start();
+        }
+        for (Controller controller : controllers) {
+            while (controller.dstores.size() < dstores) {
+                Thread.sleep(10);
+            }
+        }
+        Log.info(() -> "Local cluster started with Controllers on " + shards + " and " + dstores + " Dstores in " + folder);
+        return new LocalCluster(controllers, shards, folder);
+    }
+
+    /**
+     * Starts a follower of the first Controller and returns its port once it has loaded the primary's index.
+     */
+    public int startFollower(int timeout) throws Exception {
+        int port = freePort();
+        FollowerController follower = new FollowerController(port, getCport(), timeout);
+        new Thread(follower::start).start();
+        waitForPort(port);
+        while (!follower.isFresh()) {
+            Thread.sleep(10);
+        }
+        return port;
+    }
+
+    public Controller getController() {
+        return controllers.get(0);
+    }
+
+    public List<Controller> getControllers() {
+        return controllers;
+    }
+
+    public int getCport() {
+        return shards.get(0);
+    }
+
+    public ShardMap getShards() {
+        return shards;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path path) {
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException e) {
+            // Left for the OS to clean up
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Small asynchronous logger for the Controller and Dstores.
+ * <p>
+ * Messages below the level set with {@code -Dlog.level} (DEBUG, INFO, WARN, ERROR; INFO by default) cost one
+ * comparison, and the Supplier overloads mean the message string is never even built for them. Enabled messages are put
+ * in a bounded lock-free ring buffer and written to System.out by a background thread in large batches, so request
+ * threads never contend on the stdout lock. If the buffer is full the message is dropped and counted rather than
+ * blocking the caller.
+ */
+public final class Log {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int CAPACITY = 1 << 14;
+    private static final Level LEVEL = Level.valueOf(System.getProperty("log.level", "INFO").toUpperCase());
+
+    private static final AtomicReferenceArray<Entry> slots = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong head = new AtomicLong();
+    private static final AtomicLong tail = new AtomicLong();
+    private static final LongAdder dropped = new LongAdder();
+    private static final Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+    private static volatile Thread writerThread;
+
+    private record Entry(long time, Level level, String thread, String message, Throwable error) {
+    }
+
+    static {
+        writerThread = new Thread(Log::drain, "log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flushRemaining));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isDebugEnabled() {
+        return LEVEL == Level.DEBUG;
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void debug(Supplier<String> message) {
+        if (isDebugEnabled()) {
+            log(Level.DEBUG, message.get(), null);
+        }
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void info(Supplier<String> message) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, message.get(), null);
+        }
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static void log(Level level, String message, Throwable error) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), level, Thread.currentThread().getName(), message, error);
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail.get() >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+        slots.set((int) (sequence & (CAPACITY - 1)), entry);
+        LockSupport.unpark(writerThread);
+    }
+
+    private static void drain() {
+        while (true) {
+            try {
+                if (!writeNext()) {
+                    flush();
+                    LockSupport.parkNanos(1_000_000);
+                }
+            } catch (IOException e) {
+                dropped.increment();
+            }
+        }
+    }
+
+    /**
+     * Writes the next entry if it has been published. A claimed slot that is still empty means its producer is
+     * between the claim and the write, so the writer just tries again on the next pass.
+     */
+    private static synchronized boolean writeNext() throws IOException {
+        long sequence = tail.get();
+        if (sequence == head.get()) {
+            return false;
+        }
+        int slot = (int) (sequence & (CAPACITY - 1));
+        Entry entry = slots.get(slot);
+        if (entry == null) {
+            Thread.onSpinWait();
+            return true;
+        }
+        slots.set(slot, null);
+        tail.set(sequence + 1);
+        out.write(format(entry));
+        return true;
+    }
+
+    private static synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    private static synchronized void flushRemaining() {
+        try {
+            long deadline = System.currentTimeMillis() + 1000;
+            while (tail.get() != head.get() && System.currentTimeMillis() < deadline) {
+                writeNext();
+            }
+            out.flush();
+        } catch (IOException e) {
+            // Nothing left to report to at shutdown
+        }
+    }
+
+    private static String format(Entry entry) {
+        StringBuilder line = new StringBuilder(128)
+                .append(Instant.ofEpochMilli(entry.time())).append(' ')
+                .append(entry.level()).append(" [").append(entry.thread()).append("] ")
+                .append(entry.message()).append(System.lineSeparator());
+        if (entry.error() != null) {
+            StringWriter trace = new StringWriter();
+            entry.error().printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,176 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the space separated tokens of one protocol message in place.
+ * <p>
+ * Unlike {@code split(" ")} nothing is copied up front: opcodes are matched against the Protocol constants by
+ * comparing characters and returned as the constant itself, and numbers are parsed straight from the line, so only the
+ * file names a handler actually keeps become new strings. A tokenizer can be reset to a new line and reused by the
+ * thread that reads a connection.
+ */
+public class MessageTokenizer {
+
+    // Protocol tokens grouped by length, so matching an opcode only compares the candidates that could match
+    private static final String[][] OPCODES_BY_LENGTH;
+
+    static {
+        List<List<String>> byLength = new ArrayList<>();
+        for (Field field : Protocol.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == String.class) {
+                try {
+                    String token = (String) field.get(null);
+                    while (byLength.size() <= token.length()) {
+                        byLength.add(new ArrayList<>());
+                    }
+                    byLength.get(token.length()).add(token);
+                } catch (IllegalAccessException e) {
+                    throw new ExceptionInInitializerError(e);
+                }
+            }
+        }
+        OPCODES_BY_LENGTH = new String[byLength.size()][];
+        for (int i = 0; i < byLength.size(); i++) {
+            OPCODES_BY_LENGTH[i] = byLength.get(i).toArray(new String[0]);
+        }
+    }
+
+    private CharSequence line;
+    private int position;
+
+    public MessageTokenizer() {
+        this("");
+    }
+
+    public MessageTokenizer(CharSequence line) {
+        reset(line);
+    }
+
+    public MessageTokenizer reset(CharSequence line) {
+        this.line = line;
+        this.position = 0;
+        skipSpaces();
+        return this;
+    }
+
+    public CharSequence getLine() {
+        return line;
+    }
+
+    public boolean hasNext() {
+        return position < line.length();
+    }
+
+    /**
+     * Returns the next token as the matching Protocol constant, or as a new string if it is not a protocol token.
+     */
+    public String nextOpcode() {
+        int start = position;
+        int end = tokenEnd();
+        int length = end - start;
+        if (length < OPCODES_BY_LENGTH.length) {
+            for (String opcode : OPCODES_BY_LENGTH[length]) {
+                if (matches(start, opcode)) {
+                    advanceTo(end);
+                    return opcode;
+                }
+            }
+        }
+        return next();
+    }
+
+    public String next() {
+        int start = position;
+        int end = tokenEnd();
+        advanceTo(end);
+        return line.subSequence(start, end).toString();
+    }
+
+    public void skip() {
+        advanceTo(tokenEnd());
+    }
+
+    public int nextInt() {
+        long value = nextLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Value out of range for an int: " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads the number of entries that follow, such as the files of a batch. A negative count or one over the limit
+     * is malformed.
+     */
+    public int nextCount(int max) {
+        int count = nextInt();
+        if (count < 0 || count > max) {
+            throw new NumberFormatException("Count out of range: " + count);
+        }
+        return count;
+    }
+
+    public long nextLong() {
+        int start = position;
+        int end = tokenEnd();
+        int i = start;
+        boolean negative = line.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        if (i == end) {
+            throw new NumberFormatException("Not a number: " + line.subSequence(start, end));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = line.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("Not a number: " + line.subSequence(start, end));
+            }
+            value = value * 10 + digit;
+        }
+        advanceTo(end);
+        return negative ? -value : value;
+    }
+
+    /**
+     * True if the first token of the line is the given token, without splitting the line.
+     */
+    public static boolean startsWithToken(String line, String token) {
+        return line.startsWith(token) && (line.length() == token.length() || line.charAt(token.length()) == ' ');
+    }
+
+    private int tokenEnd() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("Message ended early: " + line);
+        }
+        int end = position;
+        while (end < line.length() && line.charAt(end) != ' ') {
+            end++;
+        }
+        return end;
+    }
+
+    private void advanceTo(int end) {
+        position = end;
+        skipSpaces();
+    }
+
+    private void skipSpaces() {
+        while (position < line.length() && line.charAt(position) == ' ') {
+            position++;
+        }
+    }
+
+    private boolean matches(int start, String opcode) {
+        for (int i = 0; i < opcode.length(); i++) {
+            if (line.charAt(start + i) != opcode.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
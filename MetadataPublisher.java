@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Streams the primary Controller's index changes to follower Controllers.
+ * <p>
+ * A follower connects with FOLLOW and first gets a snapshot of every stored file followed by METADATA_SYNCED, then one
+ * line for each later change. Each change line carries the whole current state of the entry, so applying the lines in
+ * order always leaves the follower with the primary's latest state. Heartbeats carry the number of Dstores so
+ * followers can tell how fresh they are. Every follower has its own queue and writer thread, and a follower that falls
+ * too far behind is disconnected rather than slowing the primary down. It then reconnects and takes a new snapshot.
+ */
+public class MetadataPublisher {
+
+    private static final long HEARTBEAT_INTERVAL = Long.getLong("controller.follower.heartbeatMillis", 500L);
+    private static final int MAX_BACKLOG = Integer.getInteger("controller.follower.maxBacklog", 100000);
+    private static final String STOP = ""; // Queued to wake a closed follower's writer, never written out
+
+    private final Controller controller;
+    private final List<Follower> followers = new CopyOnWriteArrayList<>();
+
+    private static class Follower {
+        private final Socket socket;
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        Follower(Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+    public MetadataPublisher(Controller controller) {
+        this.controller = controller;
+        Thread heartbeat = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(HEARTBEAT_INTERVAL);
+                    broadcast(heartbeat());
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        heartbeat.setDaemon(true);
+        heartbeat.start();
+    }
+
+    /**
+     * Sends the current state of the entry to every follower: an update if the file is stored, otherwise a removal.
+     */
+    public synchronized void publish(Index index) {
+        if (!followers.isEmpty()) {
+            broadcast(describe(index));
+        }
+    }
+
+    public void addFollower(Socket socket) {
+        Follower follower = new Follower(socket);
+        synchronized (this) {
+            controller.indices.values().forEach(index -> {
+                if (index.getStatus() == Index.Status.STORE_COMPLETE) {
+                    follower.queue.add(describe(index));
+                }
+            });
+            follower.queue.add(Protocol.METADATA_SYNCED_TOKEN);
+            follower.queue.add(heartbeat());
+            followers.add(follower);
+        }
+        Log.info(() -> "Follower Controller connected from " + socket.getRemoteSocketAddress());
+        Thread writer = new Thread(() -> write(follower));
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public int getFollowers() {
+        return followers.size();
+    }
+
+    private synchronized void broadcast(String line) {
+        for (Follower follower : followers) {
+            if (follower.queue.size() >= MAX_BACKLOG) {
+                Log.warn("Follower " + follower.socket.getRemoteSocketAddress() + " fell behind and is disconnected");
+                close(follower);
+            } else {
+                follower.queue.add(line);
+            }
+        }
+    }
+
+    private void write(Follower follower) {
+        try {
+            PrintWriter out = new PrintWriter(follower.socket.getOutputStream());
+            while (!follower.closed) {
+                String line = follower.queue.take();
+                if (line.equals(STOP)) {
+                    break;
+                }
+                out.println(line);
+                if (follower.queue.isEmpty()) {
+                    out.flush();
+                    if (out.checkError()) {
+                        break;
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The follower is gone and will resynchronise when it reconnects
+        }
+        close(follower);
+    }
+
+    private void close(Follower follower) {
+        follower.closed = true;
+        followers.remove(follower);
+        // Wakes the writer if it is waiting for a change
+        follower.queue.offer(STOP);
+        try {
+            follower.socket.close();
+        } catch (IOException e) {
+            Log.error("Could not close the connection to follower " + follower.socket.getRemoteSocketAddress(), e);
+        }
+    }
+
+    private String heartbeat() {
+        return Protocol.METADATA_HEARTBEAT_TOKEN + " " + controller.dstores.size() + " " + controller.getReplication();
+    }
+
+    private static String describe(Index index) {
+        if (index.getStatus() != Index.Status.STORE_COMPLETE) {
+            return Protocol.METADATA_REMOVE_TOKEN + " " + index.getFilename();
+        }
+        StringBuilder line = new StringBuilder(Protocol.METADATA_UPDATE_TOKEN).append(' ').append(index.getFilename())
+                .append(' ').append(index.getFilesize());
+        index.getStoredBy().forEach(port -> line.append(' ').append(port));
+        return line.toString();
+    }
+}
@@ -0,0 +1,158 @@
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges and latency histograms for one Controller or Dstore.
+ * <p>
+ * Everything is published as attributes of a single JMX MBean named {@code ds:type=Metrics,name=<component>}, with
+ * each histogram flattened into count/mean/p50/p99/p999/max attributes, and written to
+ * {@code metrics-<component>.txt} every {@code metrics.dumpMillis} milliseconds (0 turns the dump off).
+ */
+public class Metrics implements DynamicMBean {
+
+    private static final long DUMP_INTERVAL = Long.getLong("metrics.dumpMillis", 10000L);
+
+    private final String component;
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public Metrics(String component) {
+        this.component = component;
+        gauge("log.dropped", Log::getDropped);
+        try {
+            ObjectName name = new ObjectName("ds:type=Metrics,name=" + component);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (Exception e) {
+            Log.error("Could not register the metrics MBean for " + component, e);
+        }
+        if (DUMP_INTERVAL > 0) {
+            Thread dumper = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(DUMP_INTERVAL);
+                        writeDump();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "metrics-dump-" + component);
+            dumper.setDaemon(true);
+            dumper.start();
+        }
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Records the time since startNanos in the named histogram.
+     */
+    public void recordSince(String name, long startNanos) {
+        histogram(name).recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public String dump() {
+        StringBuilder dump = new StringBuilder("# ").append(component).append(" at ").append(System.currentTimeMillis()).append("\n");
+        new TreeMap<>(counters).forEach((name, value) -> dump.append(name).append(" ").append(value.sum()).append("\n"));
+        new TreeMap<>(gauges).forEach((name, value) -> dump.append(name).append(" ").append(value.getAsLong()).append("\n"));
+        new TreeMap<>(histograms).forEach((name, histogram) -> dump.append(name).append(" ").append(histogram).append("\n"));
+        return dump.toString();
+    }
+
+    private void writeDump() {
+        try (PrintWriter out = new PrintWriter(new FileWriter("metrics-" + component + ".txt"))) {
+            out.print(dump());
+        } catch (IOException e) {
+            Log.error("Could not write the metrics dump for " + component);
+        }
+    }
+
+    private Map<String, Object> attributes() {
+        Map<String, Object> attributes = new TreeMap<>();
+        counters.forEach((name, value) -> attributes.put(name, value.sum()));
+        gauges.forEach((name, value) -> attributes.put(name, value.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            attributes.put(name + ".count", histogram.getCount());
+            attributes.put(name + ".meanMicros", histogram.getMean());
+            attributes.put(name + ".p50Micros", histogram.getPercentile(0.5));
+            attributes.put(name + ".p99Micros", histogram.getPercentile(0.99));
+            attributes.put(name + ".p999Micros", histogram.getPercentile(0.999));
+            attributes.put(name + ".maxMicros", histogram.getMax());
+        });
+        return attributes;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = attributes().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) {
+        throw new UnsupportedOperationException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Object> attributes = attributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            if (attributes.containsKey(name)) {
+                list.add(new Attribute(name, attributes.get(name)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        var infos = new ArrayList<MBeanAttributeInfo>();
+        attributes().forEach((name, value) -> infos.add(new MBeanAttributeInfo(name, value.getClass().getName(), name, true, false, false)));
+        return new MBeanInfo(getClass().getName(), "Metrics for " + component, infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
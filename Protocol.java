@@ -3,11 +3,19 @@ public class Protocol {
 
     // messages sent by Clients
     public final static String LIST_TOKEN = "LIST"; // also from Controller and Dstores
+    public final static String LIST_PAGE_TOKEN = "LIST_PAGE"; // limit prefix startAfter ("-" for none), replies: f1 ... fn
     public final static String STORE_TOKEN = "STORE"; // also from Dstores
     public final static String LOAD_TOKEN = "LOAD";
     public final static String LOAD_DATA_TOKEN = "LOAD_DATA";
     public final static String RELOAD_TOKEN = "RELOAD";
     public final static String REMOVE_TOKEN = "REMOVE"; // also from Controller
+    public final static String STORE_BATCH_TOKEN = "STORE_BATCH"; // also to Dstores: STORE_BATCH n f1 s1 ... fn sn
+    public final static String LOAD_BATCH_TOKEN = "LOAD_BATCH"; // LOAD_BATCH n f1 ... fn
+    public final static String LOAD_DATA_BATCH_TOKEN = "LOAD_DATA_BATCH"; // to Dstores: LOAD_DATA_BATCH n f1 ... fn
+    public final static String REMOVE_BATCH_TOKEN = "REMOVE_BATCH"; // also from Controller: REMOVE_BATCH n f1 ... fn
+    public final static String CLIENT_TOKEN = "CLIENT"; // id [class], names the client for fair scheduling and rate limits
+    public final static String TAG_TOKEN = "TAG"; // id request, pipelined; every reply to it is sent as TAG id reply
+    public final static String STORE_RESUMABLE_TOKEN = "STORE_RESUMABLE"; // to Dstores: uploadId f size
 
     // messages sent by the Controller
     public final static String STORE_TO_TOKEN = "STORE_TO";
@@ -15,16 +23,42 @@ public class Protocol {
     public final static String LOAD_FROM_TOKEN = "LOAD_FROM";
     public final static String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
     public final static String REBALANCE_TOKEN = "REBALANCE";
+    public final static String REPAIR_TOKEN = "REPAIR"; // to a Dstore: f k p1 ... pk
+    public final static String DIGEST_TOKEN = "DIGEST"; // to a Dstore: depth level n node1 ... noden, replies: level n h1 ... hn
+    public final static String DIGEST_FILES_TOKEN = "DIGEST_FILES"; // to a Dstore: n bucket1 ... bucketn, replies: f1 ... fm
     public final static String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST"; // also from Dstores
     public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
     public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
     public final static String ERROR_LOAD_TOKEN = "ERROR_LOAD";
+    public final static String STORE_BATCH_TO_TOKEN = "STORE_BATCH_TO"; // n f1 k p1 ... pk ... (k = 0 when rejected)
+    public final static String STORE_BATCH_COMPLETE_TOKEN = "STORE_BATCH_COMPLETE"; // n f1 status1 ... fn statusn
+    public final static String LOAD_BATCH_FROM_TOKEN = "LOAD_BATCH_FROM"; // n f1 port1 size1 ... (port -1 when missing)
+    public final static String REMOVE_BATCH_COMPLETE_TOKEN = "REMOVE_BATCH_COMPLETE"; // n f1 status1 ... fn statusn
+    public final static String ERROR_TIMEOUT_TOKEN = "ERROR_TIMEOUT";
+    public final static String ERROR_WRONG_SHARD_TOKEN = "ERROR_WRONG_SHARD"; // cport of the owning Controller
+    public final static String METADATA_UPDATE_TOKEN = "METADATA_UPDATE"; // to followers: f size p1 ... pk
+    public final static String METADATA_REMOVE_TOKEN = "METADATA_REMOVE"; // to followers: f
+    public final static String METADATA_SYNCED_TOKEN = "METADATA_SYNCED"; // to followers, after the snapshot
+    public final static String METADATA_HEARTBEAT_TOKEN = "METADATA_HEARTBEAT"; // to followers: dstores replication
+
+    // The most files a batch message may name
+    public final static int MAX_BATCH = Integer.getInteger("protocol.maxBatch", 10000);
+
+    // messages sent by follower Controllers
+    public final static String FOLLOW_TOKEN = "FOLLOW";
 
     // messages sent by Dstores
     public final static String ACK_TOKEN = "ACK";
     public final static String STORE_ACK_TOKEN = "STORE_ACK";
     public final static String REMOVE_ACK_TOKEN = "REMOVE_ACK";
-    public final static String JOIN_TOKEN = "JOIN";
+    public final static String JOIN_TOKEN = "JOIN"; // port storedBytes freeBytes weight
     public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
     public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
+    public final static String REPAIR_COMPLETE_TOKEN = "REPAIR_COMPLETE"; // f
+    public final static String CAPACITY_TOKEN = "CAPACITY"; // storedBytes freeBytes weight
+    public final static String STORE_BATCH_ACK_TOKEN = "STORE_BATCH_ACK"; // n f1 ... fn
+    public final static String REMOVE_BATCH_ACK_TOKEN = "REMOVE_BATCH_ACK"; // n f1 ... fn
+    public final static String STORE_OFFSET_TOKEN = "STORE_OFFSET"; // to clients: bytes already received
+    public final static String STORE_PROGRESS_TOKEN = "STORE_PROGRESS"; // to the Controller: f bytesReceived
+    public final static String ERROR_UPLOAD_IN_PROGRESS_TOKEN = "ERROR_UPLOAD_IN_PROGRESS";
 }
\ No newline at end of file
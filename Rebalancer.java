@@ -1,21 +1,45 @@
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Moves files between Dstores so that every file has R replicas and every Dstore holds about the same number of files.
+ * <p>
+ * Once every Dstore has reported its capacity, the balance is by weighted byte utilisation instead of file count: the
+ * bytes a Dstore stores over its capacity times its weight. Files are then moved from the most to the least utilised
+ * Dstore until the utilisations are within controller.rebalance.utilisationTolerance of their mean, counting the files
+ * of other shards as fixed.
+ * <p>
+ * The periodic run only sweeps the Dstores when something has changed since the last sweep. Stores, removes, repairs
+ * and deaths mark the Dstores they touched as dirty, and a join forces a sweep since the new Dstore may hold files the
+ * index knows nothing about. When the timer fires with nothing dirty the run is skipped outright. Otherwise the
+ * Controller's own index is checked first, and the sweep is skipped as well if every file has R replicas and every
+ * Dstore is within controller.rebalance.tolerance files of its fair share. A store that fails or is cancelled may
+ * still leave a copy on its Dstores that the index knows nothing about, so those Dstores stay dirty, and every run
+ * sweeps, until a sweep has actually listed them. A Dstore marked again while a run looks at it stays dirty for the
+ * next run.
+ */
 public class Rebalancer {
 
+    private static final int TOLERANCE = Integer.getInteger("controller.rebalance.tolerance", 0);
+    private static final double UTILISATION_TOLERANCE = Double.parseDouble(System.getProperty("controller.rebalance.utilisationTolerance", "0.05"));
+
     private final int REBALANCE_INTERVAL;
     private final Controller controller;
     private Timer timer;
     private Integer timeout;
     private final AtomicBoolean isRebalancing = new AtomicBoolean(false);
     private final Queue<Message> requestQueue = new LinkedList<>();
+    // Dirty Dstores, each with the change that last marked it, so a run only clears the marks it has seen
+    private final AtomicLong changes = new AtomicLong();
+    private final Map<Integer, Long> dirty = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> unswept = new ConcurrentHashMap<>();
+    private volatile boolean joined;
 
     private Map<Integer, ArrayList<String>> currentFileAlloc = new HashMap<>();
     private Map<Integer, ArrayList<String>> rebalanceFileAlloc = new HashMap<>();
@@ -37,9 +61,16 @@ public class Rebalancer {
             timer = null;
         }
         isRebalancing.set(true);
-        System.out.println("\n-=-=-=-=-=  Re-balance operation starting   =-=-=-=-=-");
+        // Changes made from here on are picked up by the next run
+        joined = false;
+        Map<Integer, Long> swept = Map.copyOf(unswept);
+        Map.copyOf(dirty).forEach(dirty::remove);
+        long start = System.nanoTime();
+        Log.info("-=-=-=-=-=  Re-balance operation starting   =-=-=-=-=-");
         reBalanceOperation();
-        System.out.println("-=-=-=-=-=  Re-balance operation ended   =-=-=-=-=-\n");
+        Log.info("-=-=-=-=-=  Re-balance operation ended   =-=-=-=-=-");
+        swept.forEach(unswept::remove);
+        controller.getMetrics().recordSince(Protocol.REBALANCE_TOKEN, start);
         executeRequestedMessages();
         // Reseting the timer
         resetTimer();
@@ -48,38 +79,140 @@ public class Rebalancer {
 
     private void reBalanceOperation() {
         // TODO: step 1 message all the dstores LIST and wait for their response
+        // What the index says each Dstore holds, so that only the differences have to be fetched
+        Map<Integer, List<String>> expectedFiles = new HashMap<>();
+        controller.indices.values().forEach(index -> index.getStoredBy().forEach(port ->
+                expectedFiles.computeIfAbsent(port, p -> new ArrayList<>()).add(index.getFilename())));
         HashMap<Integer, ArrayList<String>> currentDstoreFileAlloc = new HashMap<>();
         controller.dstores.forEach(((integer, dstoreModel) -> {
             try {
-                var dList = dstoreModel.sendAndWaitForResponse(Protocol.LIST_TOKEN, Protocol.LIST_TOKEN);
-                System.out.println("REMOVE: Message received: " + dList);
-                if (dList != null) {
-                    if (dList.equals(Protocol.LIST_TOKEN)) {
-                        currentDstoreFileAlloc.put(dstoreModel.getPort(), new ArrayList<>());
-                    } else {
-                        currentDstoreFileAlloc.put(dstoreModel.getPort(), new ArrayList<>(Arrays.stream(dList.split(" ")).toList().subList(1, dList.split(" ").length)));
-                    }
-                } else {
-                    System.out.println("Was expecting REMOVE ACK but got: null");
+                List<String> expected = expectedFiles.getOrDefault(integer, List.of());
+                ArrayList<String> files = reconcile(dstoreModel, DigestTree.of(DigestTree.depthFor(expected.size()), expected));
+                if (files == null) {
+                    files = listFiles(dstoreModel);
+                }
+                if (files != null) {
+                    currentDstoreFileAlloc.put(dstoreModel.getPort(), files);
                 }
             } catch (DeadStoreException e) {
-                System.out.println("Dstore " + integer + " is dead cannot retrieve files from it");
+                Log.debug(() -> "Dstore " + integer + " is dead cannot retrieve files from it");
             }
         }));
 
         // TODO: step 2 ensure that all dstores have files allocated evenly
-        if (!isSpreadCorrectly(currentDstoreFileAlloc)) {
+        if (!isSpreadCorrectly(currentDstoreFileAlloc) && !holdsUnknownFiles(currentDstoreFileAlloc)) {
             return;
         }
 
         // TODO: step 2.1 if files are evenly allocated rebalance done
         this.currentFileAlloc = currentDstoreFileAlloc;
         this.rebalanceFileAlloc = spreadFiles(removeFilesFromDeadDstores(currentDstoreFileAlloc));
+        // Until their next capacity reports, count the bytes moved on and off each Dstore
+        rebalanceFileAlloc.forEach((ds, files) -> {
+            DstoreModel dstoreModel = controller.dstores.get(ds);
+            if (dstoreModel != null) {
+                long current = currentFileAlloc.getOrDefault(ds, new ArrayList<>()).stream().mapToLong(this::sizeOf).sum();
+                dstoreModel.addPlannedBytes(files.stream().mapToLong(this::sizeOf).sum() - current);
+            }
+        });
         sendRebalance();
     }
 
+    /**
+     * Works out the files a Dstore holds by walking its hash tree against the one built from the index, fetching only
+     * the names in the buckets that differ. Returns null if the Dstore did not answer.
+     */
+    private ArrayList<String> reconcile(DstoreModel dstoreModel, DigestTree expected) throws DeadStoreException {
+        int depth = expected.getDepth();
+        List<Integer> differing = List.of(0);
+        for (int level = 0; level <= depth && !differing.isEmpty(); level++) {
+            List<Integer> nodes = new ArrayList<>();
+            if (level == 0) {
+                nodes.add(0);
+            } else {
+                differing.forEach(parent -> {
+                    for (int child = 0; child < DigestTree.FANOUT; child++) {
+                        nodes.add(parent * DigestTree.FANOUT + child);
+                    }
+                });
+            }
+            var request = new StringBuilder(Protocol.DIGEST_TOKEN).append(' ').append(depth).append(' ').append(level)
+                    .append(' ').append(nodes.size());
+            nodes.forEach(node -> request.append(' ').append(node));
+            String prefix = Protocol.DIGEST_TOKEN + " " + level + " ";
+            String reply = dstoreModel.sendAndWaitForResponse(request.toString(), message -> message.startsWith(prefix));
+            if (reply == null) {
+                return null;
+            }
+            var tokenizer = new MessageTokenizer(reply);
+            tokenizer.skip();
+            tokenizer.skip();
+            if (tokenizer.nextInt() != nodes.size()) {
+                return null;
+            }
+            List<Integer> next = new ArrayList<>();
+            for (int node : nodes) {
+                if (Long.parseUnsignedLong(tokenizer.next(), 16) != expected.digest(level, node)) {
+                    next.add(node);
+                }
+            }
+            differing = next;
+        }
+
+        ArrayList<String> files = new ArrayList<>();
+        Set<Integer> differingBuckets = new HashSet<>(differing);
+        int buckets = 1 << (4 * depth);
+        for (int bucket = 0; bucket < buckets; bucket++) {
+            if (!differingBuckets.contains(bucket)) {
+                files.addAll(expected.bucket(bucket));
+            }
+        }
+        if (!differing.isEmpty()) {
+            var request = new StringBuilder(Protocol.DIGEST_FILES_TOKEN).append(' ').append(differing.size());
+            differing.forEach(bucket -> request.append(' ').append(bucket));
+            String reply = dstoreModel.sendAndWaitForResponse(request.toString(),
+                    message -> MessageTokenizer.startsWithToken(message, Protocol.DIGEST_FILES_TOKEN));
+            if (reply == null) {
+                return null;
+            }
+            var tokenizer = new MessageTokenizer(reply);
+            tokenizer.skip();
+            while (tokenizer.hasNext()) {
+                String file = tokenizer.next();
+                if (controller.ownsFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        controller.getMetrics().counter("rebalance.digestBuckets").add(differing.size());
+        return files;
+    }
+
+    /**
+     * Asks a Dstore for every file it holds. Only used when it does not answer the digest walk.
+     */
+    private ArrayList<String> listFiles(DstoreModel dstoreModel) throws DeadStoreException {
+        var dList = dstoreModel.sendAndWaitForResponse(Protocol.LIST_TOKEN, Protocol.LIST_TOKEN);
+        Log.debug(() -> "REMOVE: Message received: " + dList);
+        if (dList == null) {
+            Log.debug("Was expecting REMOVE ACK but got: null");
+            return null;
+        }
+        var files = new ArrayList<String>();
+        var tokenizer = new MessageTokenizer(dList);
+        tokenizer.skip();
+        while (tokenizer.hasNext()) {
+            String file = tokenizer.next();
+            // Dstores are shared between shards, so files owned by other Controllers are not ours to move
+            if (controller.ownsFile(file)) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
     private Map<Integer, ArrayList<String>> removeFilesFromDeadDstores(Map<Integer, ArrayList<String>> oldDstoreFiles) {
-        System.out.println("Checking if any files need to be deleted due to dead Dstores");
+        Log.debug("Checking if any files need to be deleted due to dead Dstores");
         Map<Integer, ArrayList<String>> finalDstoreFiles = new HashMap<>();
         List<String> nonDeadFiles = new ArrayList<>();
         oldDstoreFiles.forEach((integer, strings) -> {
@@ -92,7 +225,7 @@ public class Rebalancer {
                     files.add(file);
                     if (nonDeadFiles.contains(file)) nonDeadFiles.add(file);
                 } else {
-                    System.out.println("Removing the file " + file + " from indices as it was stored by a dead Dstore");
+                    Log.debug(() -> "Removing the file " + file + " from indices as it was stored by a dead Dstore");
                     controller.indices.remove(file);
                 }
             });
@@ -101,15 +234,29 @@ public class Rebalancer {
         return finalDstoreFiles;
     }
 
+    /**
+     * True if a Dstore holds a file the index has no entry for, such as the leftovers of a failed store, which the
+     * re-balance will delete.
+     */
+    private boolean holdsUnknownFiles(Map<Integer, ArrayList<String>> currentDstoreFileAlloc) {
+        return currentDstoreFileAlloc.values().stream().flatMap(List::stream).anyMatch(file -> !controller.indices.containsKey(file));
+    }
+
     private boolean isSpreadCorrectly(HashMap<Integer, ArrayList<String>> currentDstoreFileAlloc) {
         if (controller.dstores.size() == 0) return true;
+        List<DstoreModel> models = models(currentDstoreFileAlloc.keySet());
+        if (models != null && Controller.isWeighted(models)) {
+            boolean needSpread = !withinTolerance(models.stream().map(d -> d.getUtilisation(d.getStoredBytes())).toList());
+            Log.debug(() -> "The re-balancer will need re-balancing by utilisation " + needSpread);
+            return needSpread;
+        }
         var needSpread = new AtomicBoolean(false);
         float x = controller.getReplication();
         float y = controller.indices.size();
         float z = controller.dstores.size();
         var floor = Math.floor((x * y) / z);
         var ceiling = Math.ceil((x * y) / z);
-        System.out.println(currentDstoreFileAlloc.toString());
+        Log.debug(currentDstoreFileAlloc::toString);
         currentDstoreFileAlloc.forEach((dPort, sFile) -> {
             if (sFile.size() < floor) {
                 needSpread.set(true);
@@ -118,7 +265,7 @@ public class Rebalancer {
                 needSpread.set(true);
             }
         });
-        System.out.println("The re-balancer will need re-balancing " + needSpread.get());
+        Log.debug(() -> "The re-balancer will need re-balancing " + needSpread.get());
         return needSpread.get();
     }
 
@@ -171,8 +318,12 @@ public class Rebalancer {
 //    }
 
     private void sendRebalance() {
-        System.out.println("Finally sending the re-balance");
+        Log.debug("Finally sending the re-balance");
         CountDownLatch latch = new CountDownLatch(currentFileAlloc.size());
+        Map<Integer, Set<String>> currentSets = new HashMap<>();
+        Map<Integer, Set<String>> rebalanceSets = new HashMap<>();
+        currentFileAlloc.forEach((dstore, files) -> currentSets.put(dstore, new HashSet<>(files)));
+        rebalanceFileAlloc.forEach((dstore, files) -> rebalanceSets.put(dstore, new HashSet<>(files)));
 
         currentFileAlloc.forEach((cDstore, cFiles) -> {
             var message = new StringBuilder(Protocol.REBALANCE_TOKEN + " ");
@@ -182,12 +333,12 @@ public class Rebalancer {
                 if (cFiles.isEmpty() && !cDstore.equals(rDstore)) {
                     return;
                 } else {
-                    cFiles.stream().filter(rFiles::contains).forEach(file -> {
-                        System.out.println("Checking " + cDstore + " with " + rDstore + " the file is " + file);
-                        if (currentFileAlloc.get(rDstore).contains(file)) {
+                    cFiles.stream().filter(rebalanceSets.get(rDstore)::contains).forEach(file -> {
+                        Log.debug(() -> "Checking " + cDstore + " with " + rDstore + " the file is " + file);
+                        if (currentSets.get(rDstore).contains(file)) {
                             return;
                         }
-                        System.out.println(toSend.get().get(file));
+                        Log.debug(() -> String.valueOf(toSend.get().get(file)));
                         if (toSend.get().get(cDstore) == null) {
                             var dstore = new ArrayList<Integer>();
                             dstore.add(rDstore);
@@ -196,19 +347,17 @@ public class Rebalancer {
                             toSend.get().get(file).add(rDstore);
                         }
 
-                        controller.indices.forEach((fileName, index) -> {
-                            if (fileName.equals(file)) {
-                                try {
-                                    System.out.println("Updating the file " + file + " to sat it is stored by " + rDstore + " inside indicies:");
-                                    index.getStoredBy().put(rDstore, new Socket(InetAddress.getLoopbackAddress(), rDstore));
-                                    System.out.println("\t" + index.getStoredBy());
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
+                        Index index = controller.indices.get(file);
+                        if (index != null) {
+                            Log.debug(() -> "Updating the file " + file + " to sat it is stored by " + rDstore + " inside indicies:");
+                            synchronized (index) {
+                                index.addToStoredBy(rDstore);
+                                controller.getPublisher().publish(index);
                             }
-                        });
+                            Log.debug(() -> "\t" + index.getStoredBy());
+                        }
 
-                        System.out.println(toSend.get().get(file));
+                        Log.debug(() -> String.valueOf(toSend.get().get(file)));
                     });
                 }
             });
@@ -218,12 +367,13 @@ public class Rebalancer {
                 dStores.forEach(dStore -> {
                     message.append(dStore).append(" ");
                 });
+                controller.getMetrics().counter("rebalance.moves").add(dStores.size());
             });
 
             controller.dstores.values().forEach(dstoreModel -> {
                 rebalanceFileAlloc.forEach((ds, files) -> {
                     if (dstoreModel.getPort() == ds) {
-                        System.out.println("Updated the DstoreModel " + ds + " to say it is storing " + files.size() + " files");
+                        Log.debug(() -> "Updated the DstoreModel " + ds + " to say it is storing " + files.size() + " files");
                         dstoreModel.setNumberOfFiles(files.size());
                     }
                 });
@@ -233,21 +383,24 @@ public class Rebalancer {
             AtomicReference<Set<String>> toRemove = new AtomicReference<>(new HashSet<>());
             currentFileAlloc.forEach((rDstore, rFiles) -> {
                 if (cDstore.equals(rDstore)) {
-                    cFiles.stream().filter(file -> !rFiles.contains(file)).forEach(s -> toRemove.get().add(s));
+                    cFiles.stream().filter(file -> !currentSets.get(rDstore).contains(file)).forEach(s -> toRemove.get().add(s));
                 }
             });
+            // Leftovers the index has no entry for, such as those of a failed store
+            cFiles.stream().filter(file -> !controller.indices.containsKey(file)).forEach(toRemove.get()::add);
             message.append(toRemove.get().size()).append(" ");
+            controller.getMetrics().counter("rebalance.removals").add(toRemove.get().size());
             toRemove.get().forEach(s -> message.append(s).append(" "));
             var expected = Protocol.REBALANCE_COMPLETE_TOKEN;
 
             try {
                 String response = controller.dstores.get(cDstore).sendAndWaitForResponse(message.toString(), expected);
-                System.out.println("REBALANCE: Message received: " + message);
+                Log.debug(() -> "REBALANCE: Message received: " + message);
                 if (response != null) {
-                    System.out.println("REBALANCE LATCH COUNTING DOWN FOR " + cDstore);
+                    Log.debug(() -> "REBALANCE LATCH COUNTING DOWN FOR " + cDstore);
                     latch.countDown();
                 } else {
-                    System.out.println("Was expecting REBALANCE_COMPLETE_TOKEN but got: null");
+                    Log.debug("Was expecting REBALANCE_COMPLETE_TOKEN but got: null");
                 }
             } catch (DeadStoreException e) {
                 throw new RuntimeException(e);
@@ -256,16 +409,16 @@ public class Rebalancer {
 
         try {
             if (latch.await(controller.getTimeout(), TimeUnit.MILLISECONDS)) {
-                System.out.println("Re-balance successfully completed");
+                Log.debug("Re-balance successfully completed");
             } else {
-                System.out.println("Timed out while waiting for the Dstore responses when performing re-balance");
+                Log.warn("Timed out while waiting for the Dstore responses when performing re-balance");
             }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
     }
 
-    private Map<Integer, ArrayList<String>> spreadFiles(Map<Integer, ArrayList<String>> dstoreFiles) {
+    Map<Integer, ArrayList<String>> spreadFiles(Map<Integer, ArrayList<String>> dstoreFiles) {
         //        System.out.println("Performing a spread of files");
 //        if (lowestStoringDstore != -1 && highestStoringDstore != -1) {
 //            var lowFiles = rebalanceFileAlloc.get(lowestStoringDstore);
@@ -311,30 +464,30 @@ public class Rebalancer {
         dstoreFiles.keySet().forEach(ds -> dstoreFiles.get(ds).forEach(file -> fileStoredByAmount.merge(file, 1, Integer::sum)));
 
         fileStoredByAmount.keySet().forEach(file -> {
-            System.out.println("Checking " + file + " is properly balanced across all Dstores");
+            Log.debug(() -> "Checking " + file + " is properly balanced across all Dstores");
             if (fileStoredByAmount.get(file) == controller.getReplication()) {
-                System.out.println("The file " + file + " is properly balanced");
+                Log.debug(() -> "The file " + file + " is properly balanced");
                 return;
             }
             if (fileStoredByAmount.get(file) > controller.getReplication()) {
-                System.out.println("File " + file + " is over the replication amount: " + fileStoredByAmount.get(file) + " > " + controller.getReplication());
+                Log.debug(() -> "File " + file + " is over the replication amount: " + fileStoredByAmount.get(file) + " > " + controller.getReplication());
                 dstoreFiles.keySet().forEach(ds -> {
                     if (dstoreFiles.get(ds).contains(file)) {
-                        System.out.println("Found a Dstore that contains the file " + file + ", proceeding to REMOVE it...");
+                        Log.debug(() -> "Found a Dstore that contains the file " + file + ", proceeding to REMOVE it...");
                         dstoreFiles.get(ds).remove(file);
                         fileStoredByAmount.put(file, fileStoredByAmount.get(file) - 1);
-                        System.out.println("\t" + file + " was removed from " + ds);
+                        Log.debug(() -> "\t" + file + " was removed from " + ds);
                     }
                 });
             }
             if (fileStoredByAmount.get(file) < controller.getReplication()) {
-                System.out.println("File " + file + " is under the replication amount: " + fileStoredByAmount.get(file) + " > " + controller.getReplication());
+                Log.debug(() -> "File " + file + " is under the replication amount: " + fileStoredByAmount.get(file) + " > " + controller.getReplication());
                 dstoreFiles.keySet().forEach(ds -> {
                     if (dstoreFiles.get(ds).contains(file)) {
-                        System.out.println("Found a Dstore that contains the file " + file + ", proceeding to ADD TO it...");
+                        Log.debug(() -> "Found a Dstore that contains the file " + file + ", proceeding to ADD TO it...");
                         dstoreFiles.get(ds).add(file);
                         fileStoredByAmount.put(file, fileStoredByAmount.get(file) + 1);
-                        System.out.println("\t" + file + " added to " + ds);
+                        Log.debug(() -> "\t" + file + " added to " + ds);
                     }
                 });
             }
@@ -343,7 +496,11 @@ public class Rebalancer {
         return finalReBalanceOfFiles(fileStoredByAmount, dstoreFiles);
     }
 
-    private Map<Integer, ArrayList<String>> finalReBalanceOfFiles(Map<String, Integer> fileStoredByAmount, Map<Integer, ArrayList<String>> dstoreFiles) {
+    Map<Integer, ArrayList<String>> finalReBalanceOfFiles(Map<String, Integer> fileStoredByAmount, Map<Integer, ArrayList<String>> dstoreFiles) {
+        List<DstoreModel> models = models(dstoreFiles.keySet());
+        if (models != null && Controller.isWeighted(models)) {
+            return balanceUtilisation(dstoreFiles);
+        }
         float x = controller.getReplication();
         float y = fileStoredByAmount.size();
         float z = dstoreFiles.size();
@@ -382,6 +539,89 @@ public class Rebalancer {
         return dstoreFiles;
     }
 
+    /**
+     * Moves files one at a time from the most to the least utilised Dstore, picking the file that leaves the pair the
+     * closest, until the utilisations are within the tolerance, no move helps or the timeout is up.
+     */
+    private Map<Integer, ArrayList<String>> balanceUtilisation(Map<Integer, ArrayList<String>> dstoreFiles) {
+        Map<Integer, Long> planned = new HashMap<>();
+        Map<Integer, Long> others = new HashMap<>();
+        dstoreFiles.forEach((ds, files) -> {
+            planned.put(ds, files.stream().mapToLong(this::sizeOf).sum());
+            long current = currentFileAlloc.getOrDefault(ds, new ArrayList<>()).stream().mapToLong(this::sizeOf).sum();
+            // What the Dstore stores for the other shards, which this Controller cannot move
+            others.put(ds, Math.max(0, controller.dstores.get(ds).getStoredBytes() - current));
+        });
+        Map<Integer, Double> utilisation = new HashMap<>();
+        dstoreFiles.keySet().forEach(ds -> utilisation.put(ds, controller.dstores.get(ds).getUtilisation(others.get(ds) + planned.get(ds))));
+
+        var stoppingTime = System.currentTimeMillis() + controller.getTimeout();
+        while (!withinTolerance(utilisation.values()) && System.currentTimeMillis() < stoppingTime) {
+            Integer high = Collections.max(utilisation.keySet(), Comparator.comparing(utilisation::get));
+            Integer low = Collections.min(utilisation.keySet(), Comparator.comparing(utilisation::get));
+            DstoreModel highModel = controller.dstores.get(high);
+            DstoreModel lowModel = controller.dstores.get(low);
+            Set<String> lowFiles = new HashSet<>(dstoreFiles.get(low));
+            String best = null;
+            double bestPeak = utilisation.get(high);
+            for (String file : dstoreFiles.get(high)) {
+                if (lowFiles.contains(file)) {
+                    continue;
+                }
+                long size = sizeOf(file);
+                double peak = Math.max(highModel.getUtilisation(others.get(high) + planned.get(high) - size),
+                        lowModel.getUtilisation(others.get(low) + planned.get(low) + size));
+                if (peak < bestPeak) {
+                    best = file;
+                    bestPeak = peak;
+                }
+            }
+            if (best == null) {
+                break;
+            }
+            long size = sizeOf(best);
+            dstoreFiles.get(high).remove(best);
+            dstoreFiles.get(low).add(best);
+            planned.merge(high, -size, Long::sum);
+            planned.merge(low, size, Long::sum);
+            utilisation.put(high, highModel.getUtilisation(others.get(high) + planned.get(high)));
+            utilisation.put(low, lowModel.getUtilisation(others.get(low) + planned.get(low)));
+        }
+        return dstoreFiles;
+    }
+
+    private long sizeOf(String file) {
+        Index index = controller.indices.get(file);
+        return index == null ? 0 : index.getFilesize();
+    }
+
+    /**
+     * The live models of the given Dstores, or null if any of them has gone.
+     */
+    private List<DstoreModel> models(Collection<Integer> ports) {
+        List<DstoreModel> models = new ArrayList<>();
+        for (Integer port : ports) {
+            DstoreModel dstoreModel = controller.dstores.get(port);
+            if (dstoreModel == null || dstoreModel.isDead()) {
+                return null;
+            }
+            models.add(dstoreModel);
+        }
+        return models;
+    }
+
+    /**
+     * True if the spread of the utilisations is within the tolerance, as a fraction of their mean.
+     */
+    private static boolean withinTolerance(Collection<Double> utilisations) {
+        if (utilisations.isEmpty()) {
+            return true;
+        }
+        double mean = utilisations.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+        double spread = Collections.max(utilisations) - Collections.min(utilisations);
+        return mean <= 0 || spread <= UTILISATION_TOLERANCE * mean;
+    }
+
     private Integer getHighestStoringDstore(Map<Integer, ArrayList<String>> dstoreFiles) {
         final AtomicInteger[] lowestDstore = {new AtomicInteger((Integer) dstoreFiles.keySet().toArray()[0])};
         dstoreFiles.forEach((ds, files) -> {
@@ -405,11 +645,12 @@ public class Rebalancer {
 
     private void executeRequestedMessages() {
         requestQueue.forEach(message -> {
-            var splitMessage = message.getMessage().split(" ");
-            if (splitMessage[0].equals(Protocol.JOIN_TOKEN)) {
-                controller.joinDstore(message.getReuqester(), splitMessage);
+            var tokenizer = new MessageTokenizer(message.getMessage());
+            if (MessageTokenizer.startsWithToken(message.getMessage(), Protocol.JOIN_TOKEN)) {
+                tokenizer.skip();
+                controller.joinDstore(message.getReuqester(), tokenizer.nextInt(), tokenizer);
             } else {
-                controller.handleMessage(message.getReuqester(), splitMessage);
+                controller.handleMessage(message.getReuqester(), tokenizer);
             }
         });
     }
@@ -426,16 +667,85 @@ public class Rebalancer {
     private class RebalanceTask extends TimerTask {
         @Override
         public void run() {
+            Map<Integer, Long> seen = Map.copyOf(dirty);
+            if (!joined && unswept.isEmpty() && (seen.isEmpty() || isBalanced())) {
+                seen.forEach(dirty::remove);
+                controller.getMetrics().counter("rebalance.skipped").increment();
+                return;
+            }
             startReBalanceOperation();
         }
     }
 
+    /**
+     * Records that the files held by a Dstore have changed.
+     */
+    public void markDirty(int dstore) {
+        dirty.put(dstore, changes.incrementAndGet());
+    }
+
+    /**
+     * Records that a Dstore may hold files the index does not know about, so the next runs must sweep it.
+     */
+    public void markUnswept(int dstore) {
+        long change = changes.incrementAndGet();
+        unswept.put(dstore, change);
+        dirty.put(dstore, change);
+    }
+
+    /**
+     * Records that a Dstore has joined, so the next run sweeps every Dstore whatever the index says.
+     */
+    public void markJoined() {
+        joined = true;
+    }
+
+    public int getDirtyCount() {
+        return dirty.size();
+    }
+
+    /**
+     * Checks the balance against the index alone: every stored file must have R replicas on live Dstores and each
+     * Dstore must be within the tolerance of its share of the replicas.
+     */
+    private boolean isBalanced() {
+        Map<Integer, Integer> counts = new HashMap<>();
+        controller.dstores.keySet().forEach(port -> counts.put(port, 0));
+        int files = 0;
+        for (Index index : controller.indices.values()) {
+            if (index.getStatus() != Index.Status.STORE_COMPLETE) {
+                continue;
+            }
+            ReplicaSet storedBy = index.getStoredBy();
+            if (storedBy.size() != controller.getReplication()) {
+                return false;
+            }
+            for (int i = 0; i < storedBy.size(); i++) {
+                if (counts.computeIfPresent(storedBy.get(i), (port, count) -> count + 1) == null) {
+                    return false;
+                }
+            }
+            files++;
+        }
+        if (counts.isEmpty()) {
+            return true;
+        }
+        List<DstoreModel> models = models(counts.keySet());
+        if (models != null && Controller.isWeighted(models)) {
+            return withinTolerance(models.stream().map(d -> d.getUtilisation(d.getStoredBytes())).toList());
+        }
+        double share = (double) controller.getReplication() * files / counts.size();
+        double floor = Math.floor(share) - TOLERANCE;
+        double ceiling = Math.ceil(share) + TOLERANCE;
+        return counts.values().stream().allMatch(count -> count >= floor && count <= ceiling);
+    }
+
     public AtomicBoolean getIsRebalancing() {
         return isRebalancing;
     }
 
     public void addToRequestQueue(Message message) {
-        System.out.println("Adding the message " + message.getMessage() + " to request queue in the re-balancer");
+        Log.debug(() -> "Adding the message " + message.getMessage() + " to request queue in the re-balancer");
         requestQueue.add(message);
     }
 
@@ -446,9 +756,9 @@ public class Rebalancer {
     }
 
     public void deleteFromRebalanceFileAlloc(Integer key, String files) {
-        System.out.println(rebalanceFileAlloc);
-        System.out.println(key);
-        System.out.println(rebalanceFileAlloc.get(key));
+        Log.debug(() -> String.valueOf(rebalanceFileAlloc));
+        Log.debug(() -> String.valueOf(key));
+        Log.debug(() -> String.valueOf(rebalanceFileAlloc.get(key)));
         var newFiles = new ArrayList<String>(rebalanceFileAlloc.get(key));
         newFiles.remove(files);
         rebalanceFileAlloc.put(key, newFiles);
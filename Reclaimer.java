@@ -0,0 +1,159 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deletes removed files from the Dstores in the background.
+ * <p>
+ * A REMOVE only marks the index entry REMOVE_IN_PROGRESS (a tombstone) and is answered straight away. The reclaimer
+ * then groups the tombstones by Dstore, sends each Dstore one REMOVE_BATCH per round and drops a replica from the
+ * entry as its ack arrives. Once no replica is left the entry is marked REMOVE_COMPLETE and taken out of the index.
+ * Dstores that miss a round are simply retried on the next one, so a slow Dstore never holds up a client.
+ * <p>
+ * A STORE of a name that is still tombstoned cancels its reclaim and takes the entry over, see
+ * {@link #cancel(Index, long)}.
+ */
+public class Reclaimer {
+
+    private static final int MAX_BATCH = 1000;
+
+    private final Controller controller;
+    private final long interval;
+    private final Map<String, Index> tombstones = new ConcurrentHashMap<>();
+    private final Set<String> sending = new HashSet<>(); // Names in the round under way, guarded by this
+
+    public Reclaimer(Controller controller, long interval) {
+        this.controller = controller;
+        this.interval = interval;
+        Thread thread = new Thread(this::run);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void submit(Index index) {
+        tombstones.put(index.getFilename(), index);
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stops reclaiming the tombstoned entry, so that a new store can reuse it. A round already deleting the file is
+     * waited for, for at most the timeout, so its removes cannot land on the new copies. Returns false if the entry
+     * is no longer a tombstone, or the round did not finish in time and the entry is left to the reclaimer.
+     */
+    public synchronized boolean cancel(Index index, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (sending.contains(index.getFilename())) {
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return tombstones.remove(index.getFilename(), index);
+    }
+
+    public int getPending() {
+        return tombstones.size();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                synchronized (this) {
+                    if (tombstones.isEmpty()) {
+                        wait();
+                    } else {
+                        wait(interval);
+                    }
+                }
+                reclaimOnce();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Log.error("Reclaiming removed files failed", e);
+            }
+        }
+    }
+
+    private void reclaimOnce() throws InterruptedException {
+        Map<Integer, Set<String>> filesPerDstore = new HashMap<>();
+        try {
+            synchronized (this) {
+                collect(filesPerDstore);
+                filesPerDstore.values().forEach(sending::addAll);
+            }
+            reclaim(filesPerDstore);
+        } finally {
+            synchronized (this) {
+                sending.clear();
+                notifyAll();
+            }
+        }
+    }
+
+    private void collect(Map<Integer, Set<String>> filesPerDstore) {
+        for (Index index : new ArrayList<>(tombstones.values())) {
+            if (controller.indices.get(index.getFilename()) != index) {
+                // The entry was dropped elsewhere, for example by a re-balance
+                tombstones.remove(index.getFilename(), index);
+                continue;
+            }
+            synchronized (index) {
+                ReplicaSet storedBy = index.getStoredBy();
+                for (int i = 0; i < storedBy.size(); i++) {
+                    int port = storedBy.get(i);
+                    if (!controller.dstores.containsKey(port)) {
+                        index.removeFromStoredBy(port);
+                    } else if (filesPerDstore.computeIfAbsent(port, p -> new LinkedHashSet<>()).size() < MAX_BATCH) {
+                        filesPerDstore.get(port).add(index.getFilename());
+                    }
+                }
+            }
+        }
+    }
+
+    private void reclaim(Map<Integer, Set<String>> filesPerDstore) throws InterruptedException {
+        Map<DstoreModel, Set<String>> sent = new HashMap<>();
+        filesPerDstore.forEach((port, fileNames) -> {
+            DstoreModel dstoreModel = controller.dstores.get(port);
+            if (dstoreModel != null && !dstoreModel.isDead()) {
+                sent.put(dstoreModel, fileNames);
+            }
+        });
+        AckTracker tracker = controller.expectACKs(Protocol.REMOVE_ACK_TOKEN, sent, (dstoreModel, fileName) -> {
+            Index index = tombstones.get(fileName);
+            if (index != null) {
+                synchronized (index) {
+                    index.removeFromStoredBy(dstoreModel.getPort());
+                }
+            }
+        });
+        sent.forEach((dstoreModel, fileNames) -> {
+            try {
+                dstoreModel.send(Controller.batchRequest(Protocol.REMOVE_BATCH_TOKEN, fileNames));
+            } catch (DeadStoreException e) {
+                Log.error("Could not reclaim files from dead Dstore " + dstoreModel.getPort());
+            }
+        });
+        if (!tracker.await()) {
+            // Whatever is still unacknowledged is sent again next round
+            controller.cancelACKs(Protocol.REMOVE_ACK_TOKEN, sent);
+        }
+
+        for (Index index : new ArrayList<>(tombstones.values())) {
+            // Whoever takes the tombstone out first owns the entry, this round or a store cancelling it
+            if (index.getStoredBy().isEmpty() && tombstones.remove(index.getFilename(), index)) {
+                synchronized (controller.indices) {
+                    index.setStatus(Index.Status.REMOVE_COMPLETE);
+                    controller.indices.remove(index.getFilename(), index);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-replicates the files of a dead Dstore straight away instead of leaving them to the next rebalance.
+ * <p>
+ * Every file that lost a replica is queued, the ones with the fewest copies left first. A fixed number of workers
+ * (controller.repair.concurrency) take files off the queue and send one surviving replica a REPAIR naming the least
+ * loaded Dstores that do not hold it yet. The replica copies the file over with REBALANCE_STORE and answers
+ * REPAIR_COMPLETE, and only then are the new Dstores added to the index entry. A repair that fails is left to the next
+ * rebalance.
+ */
+public class RepairQueue {
+
+    private static final int CONCURRENCY = Integer.getInteger("controller.repair.concurrency", 4);
+
+    private final Controller controller;
+    private final PriorityBlockingQueue<Repair> queue = new PriorityBlockingQueue<>(64,
+            Comparator.comparingInt(Repair::replicas).thenComparingLong(Repair::sequence));
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sequence = new AtomicLong();
+
+    private record Repair(Index index, int replicas, long sequence) {
+    }
+
+    public RepairQueue(Controller controller) {
+        this.controller = controller;
+        for (int i = 0; i < CONCURRENCY; i++) {
+            Thread worker = new Thread(this::run, "repair-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Queues the file if it has fewer replicas than the replication factor and is not queued already.
+     */
+    public void submit(Index index) {
+        int replicas = index.getStoredBy().size();
+        if (replicas < controller.getReplication() && queued.add(index.getFilename())) {
+            queue.add(new Repair(index, replicas, sequence.getAndIncrement()));
+        }
+    }
+
+    public int getPending() {
+        return queued.size();
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Repair repair = queue.take();
+                queued.remove(repair.index().getFilename());
+                long start = System.nanoTime();
+                if (repair(repair.index())) {
+                    controller.getMetrics().recordSince("repair", start);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Log.error("Repair failed", e);
+            }
+        }
+    }
+
+    private boolean repair(Index index) throws InterruptedException {
+        String fileName = index.getFilename();
+        ReplicaSet storedBy = index.getStoredBy();
+        int missing = controller.getReplication() - storedBy.size();
+        if (index.getStatus() != Index.Status.STORE_COMPLETE || missing <= 0) {
+            return false;
+        }
+        DstoreModel source = null;
+        for (int i = 0; i < storedBy.size() && source == null; i++) {
+            DstoreModel holder = controller.dstores.get(storedBy.get(i));
+            source = holder == null || holder.isDead() ? null : holder;
+        }
+        if (source == null) {
+            Log.error("Every replica of " + fileName + " has been lost");
+            controller.getMetrics().counter("repair.lost").increment();
+            return false;
+        }
+
+        List<DstoreModel> candidates = new ArrayList<>(controller.dstores.values());
+        candidates.removeIf(dstoreModel -> storedBy.contains(dstoreModel.getPort()) || dstoreModel.isDead());
+        boolean weighted = Controller.isWeighted(candidates);
+        Map<DstoreModel, Double> load = new HashMap<>();
+        candidates.forEach(dstoreModel -> load.put(dstoreModel, Controller.load(dstoreModel, index.getFilesize(), weighted)));
+        candidates.sort(Comparator.comparing(load::get));
+        List<DstoreModel> targets = candidates.subList(0, Math.min(missing, candidates.size()));
+        if (targets.isEmpty()) {
+            return false;
+        }
+
+        StringBuilder message = new StringBuilder(Protocol.REPAIR_TOKEN).append(' ').append(fileName).append(' ').append(targets.size());
+        targets.forEach(target -> message.append(' ').append(target.getPort()));
+        Map<DstoreModel, List<String>> expected = Map.of(source, List.of(fileName));
+        AckTracker tracker = controller.expectACKs(Protocol.REPAIR_COMPLETE_TOKEN, expected, (dstoreModel, name) -> {});
+        try {
+            source.send(message.toString());
+        } catch (DeadStoreException e) {
+            controller.cancelACKs(Protocol.REPAIR_COMPLETE_TOKEN, expected);
+            submit(index);
+            return false;
+        }
+        if (!tracker.await()) {
+            controller.cancelACKs(Protocol.REPAIR_COMPLETE_TOKEN, expected);
+            Log.warn("Repair of " + fileName + " from Dstore " + source.getPort() + " timed out");
+            controller.getMetrics().counter("repair.failed").increment();
+            return false;
+        }
+
+        synchronized (index) {
+            targets.forEach(target -> {
+                index.addToStoredBy(target.getPort());
+                target.setNumberOfFiles(target.getNumberOfFiles() + 1);
+                target.addPlannedBytes(index.getFilesize());
+                controller.getRebalancer().markDirty(target.getPort());
+            });
+            controller.getPublisher().publish(index);
+        }
+        controller.getMetrics().counter("repair.copies").add(targets.size());
+        Log.info(() -> "Repaired " + fileName + " onto " + targets.size() + " Dstores");
+        return true;
+    }
+}
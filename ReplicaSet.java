@@ -0,0 +1,106 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Immutable, interned set of the Dstore ports that hold a file.
+ * <p>
+ * The ports are kept as a sorted int array and every distinct set exists only once, so the index entries of millions
+ * of files share the few hundred sets that a cluster actually has and each entry costs a single reference. Adding or
+ * removing a port returns the interned set for the result. Iterating with {@link #size()} and {@link #get(int)} or
+ * {@link #forEach(IntConsumer)} does not allocate.
+ */
+public final class ReplicaSet {
+
+    private static final Map<ReplicaSet, ReplicaSet> interned = new ConcurrentHashMap<>();
+
+    public static final ReplicaSet EMPTY = intern(new int[0]);
+
+    private final int[] ports;
+    private final int hash;
+
+    private ReplicaSet(int[] ports) {
+        this.ports = ports;
+        this.hash = Arrays.hashCode(ports);
+    }
+
+    public static ReplicaSet of(int... ports) {
+        int[] sorted = Arrays.stream(ports).distinct().sorted().toArray();
+        return intern(sorted);
+    }
+
+    private static ReplicaSet intern(int[] sortedPorts) {
+        ReplicaSet candidate = new ReplicaSet(sortedPorts);
+        ReplicaSet existing = interned.putIfAbsent(candidate, candidate);
+        return existing == null ? candidate : existing;
+    }
+
+    public ReplicaSet with(int port) {
+        int position = Arrays.binarySearch(ports, port);
+        if (position >= 0) {
+            return this;
+        }
+        int insertAt = -position - 1;
+        int[] result = new int[ports.length + 1];
+        System.arraycopy(ports, 0, result, 0, insertAt);
+        result[insertAt] = port;
+        System.arraycopy(ports, insertAt, result, insertAt + 1, ports.length - insertAt);
+        return intern(result);
+    }
+
+    public ReplicaSet without(int port) {
+        int position = Arrays.binarySearch(ports, port);
+        if (position < 0) {
+            return this;
+        }
+        int[] result = new int[ports.length - 1];
+        System.arraycopy(ports, 0, result, 0, position);
+        System.arraycopy(ports, position + 1, result, position, ports.length - position - 1);
+        return intern(result);
+    }
+
+    public boolean contains(int port) {
+        return Arrays.binarySearch(ports, port) >= 0;
+    }
+
+    public int size() {
+        return ports.length;
+    }
+
+    public boolean isEmpty() {
+        return ports.length == 0;
+    }
+
+    public int get(int i) {
+        return ports[i];
+    }
+
+    public void forEach(IntConsumer action) {
+        for (int port : ports) {
+            action.accept(port);
+        }
+    }
+
+    /**
+     * Number of distinct replica sets in use, for the metrics.
+     */
+    public static int getInternedCount() {
+        return interned.size();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof ReplicaSet other && hash == other.hash && Arrays.equals(ports, other.ports));
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(ports);
+    }
+}
@@ -0,0 +1,293 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Log-structured storage for small files.
+ * <p>
+ * Files are appended to large segment files and found again through an in-memory index of name to offset, so storing
+ * a small file is a sequential write rather than a new inode. Removing a file appends a tombstone record. A background
+ * compactor copies the live records out of segments that are mostly dead space and deletes the old segment. The index
+ * is rebuilt by replaying the segments in order when the store is opened.
+ * <p>
+ * Record layout: type (1 byte), name length (int), name (UTF-8), data length (int), data.
+ */
+public class SegmentStore {
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    private final File directory;
+    private final long segmentSize;
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private Segment active;
+
+    private record Location(int segment, long offset, int length, int recordSize) {
+    }
+
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private final AtomicLong liveBytes = new AtomicLong();
+        private final AtomicLong deadBytes = new AtomicLong();
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    public SegmentStore(File directory, long segmentSize, long compactionInterval) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Segment folder " + directory + " could not be created");
+        }
+        recover();
+        if (compactionInterval > 0) {
+            Thread compactor = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(compactionInterval);
+                        compact();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (Exception e) {
+                        Log.error("Segment compaction failed", e);
+                    }
+                }
+            });
+            compactor.setDaemon(true);
+            compactor.start();
+        }
+    }
+
+    public synchronized void put(String fileName, byte[] data) throws IOException {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(1 + 4 + name.length + 4 + data.length);
+        record.put(PUT).putInt(name.length).put(name).putInt(data.length).put(data).flip();
+        long position = append(record);
+        Location location = new Location(active.id, position + record.limit() - data.length, data.length, record.limit());
+        active.liveBytes.addAndGet(record.limit());
+        markDead(index.put(fileName, location));
+    }
+
+    public synchronized boolean remove(String fileName) throws IOException {
+        Location location = index.remove(fileName);
+        if (location == null) {
+            return false;
+        }
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(1 + 4 + name.length + 4);
+        record.put(DELETE).putInt(name.length).put(name).putInt(0).flip();
+        append(record);
+        active.deadBytes.addAndGet(record.limit());
+        markDead(location);
+        return true;
+    }
+
+    /**
+     * The segment file holding the file's latest record, or null if it is not stored.
+     */
+    public File segmentFileFor(String fileName) {
+        Location location = index.get(fileName);
+        Segment segment = location == null ? null : segments.get(location.segment());
+        return segment == null ? null : segment.file;
+    }
+
+    public boolean contains(String fileName) {
+        return index.containsKey(fileName);
+    }
+
+    public long length(String fileName) {
+        Location location = index.get(fileName);
+        return location == null ? -1 : location.length();
+    }
+
+    /**
+     * Bytes taken up by the latest records of the stored files, which is what compaction would leave behind.
+     */
+    public long getLiveBytes() {
+        return segments.values().stream().mapToLong(segment -> segment.liveBytes.get()).sum();
+    }
+
+    public Set<String> fileNames() {
+        return index.keySet();
+    }
+
+    /**
+     * Returns the contents of the file, or null if it is not in the store.
+     */
+    public byte[] read(String fileName) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            Location location = index.get(fileName);
+            if (location == null) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(location.length());
+            readFully(segments.get(location.segment()).channel, buffer, location.offset());
+            return buffer.array();
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the live records of sealed segments whose dead space passes the threshold, then deletes them. Segments
+     * are compacted oldest first and compaction stops at the first segment that does not qualify, because a tombstone
+     * may only be dropped once every older segment that could hold the record it deletes is gone.
+     */
+    public void compact() throws IOException {
+        ArrayList<Segment> candidates = new ArrayList<>();
+        synchronized (this) {
+            ArrayList<Segment> sealed = new ArrayList<>(segments.values());
+            sealed.remove(active);
+            sealed.sort((a, b) -> Integer.compare(a.id, b.id));
+            for (Segment segment : sealed) {
+                long total = segment.liveBytes.get() + segment.deadBytes.get();
+                if (total > 0 && segment.deadBytes.get() < total * COMPACTION_THRESHOLD) {
+                    break;
+                }
+                candidates.add(segment);
+            }
+        }
+        for (Segment segment : candidates) {
+            Log.info(() -> "Compacting segment " + segment.file.getName());
+            for (Map.Entry<String, Location> entry : index.entrySet()) {
+                if (entry.getValue().segment() != segment.id) {
+                    continue;
+                }
+                synchronized (this) {
+                    Location location = index.get(entry.getKey());
+                    if (location == null || location.segment() != segment.id) {
+                        continue;
+                    }
+                    ByteBuffer data = ByteBuffer.allocate(location.length());
+                    readFully(segment.channel, data, location.offset());
+                    put(entry.getKey(), data.array());
+                }
+            }
+            segmentLock.writeLock().lock();
+            try {
+                segments.remove(segment.id);
+                segment.channel.close();
+                if (!segment.file.delete()) {
+                    Log.error("Could not delete compacted segment " + segment.file);
+                }
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private long append(ByteBuffer record) throws IOException {
+        if (active == null || active.channel.size() + record.limit() > segmentSize) {
+            roll();
+        }
+        long position = active.channel.size();
+        while (record.hasRemaining()) {
+            active.channel.write(record, position + record.position());
+        }
+        return position;
+    }
+
+    private void roll() throws IOException {
+        int id = active == null ? 0 : active.id + 1;
+        while (segments.containsKey(id)) {
+            id++;
+        }
+        active = new Segment(id, new File(directory, segmentName(id)));
+        segments.put(id, active);
+    }
+
+    private void markDead(Location location) {
+        if (location == null) {
+            return;
+        }
+        Segment segment = segments.get(location.segment());
+        if (segment != null) {
+            segment.liveBytes.addAndGet(-location.recordSize());
+            segment.deadBytes.addAndGet(location.recordSize());
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String number = file.getName().substring(SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length());
+            Segment segment = new Segment(Integer.parseInt(number), file);
+            segments.put(segment.id, segment);
+            replay(segment);
+            active = segment;
+        }
+        Log.info(() -> "Recovered " + index.size() + " files from " + segments.size() + " segments in " + directory);
+    }
+
+    private void replay(Segment segment) throws IOException {
+        long position = 0;
+        long size = segment.channel.size();
+        ByteBuffer header = ByteBuffer.allocate(5);
+        while (position + 9 <= size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            byte type = header.get(0);
+            int nameLength = header.getInt(1);
+            if ((type != PUT && type != DELETE) || nameLength <= 0 || position + 9 + nameLength > size) {
+                break;
+            }
+            ByteBuffer rest = ByteBuffer.allocate(nameLength + 4);
+            readFully(segment.channel, rest, position + 5);
+            String fileName = new String(rest.array(), 0, nameLength, StandardCharsets.UTF_8);
+            int dataLength = rest.getInt(nameLength);
+            if (dataLength < 0 || position + 9 + nameLength + dataLength > size) {
+                // Torn write at the end of the log
+                break;
+            }
+            int recordSize = 9 + nameLength + dataLength;
+            if (type == PUT) {
+                markDead(index.put(fileName, new Location(segment.id, position + 9 + nameLength, dataLength, recordSize)));
+                segment.liveBytes.addAndGet(recordSize);
+            } else {
+                markDead(index.remove(fileName));
+                segment.deadBytes.addAndGet(recordSize);
+            }
+            position += recordSize;
+        }
+        segment.channel.truncate(position);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static String segmentName(int id) {
+        return SEGMENT_PREFIX + String.format("%08d", id) + SEGMENT_SUFFIX;
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.Arrays;
+
+/**
+ * Splits the file namespace between several Controllers by the hash of the file name.
+ * <p>
+ * Every Controller owns the files whose name hashes to its position in the map and keeps only their metadata. The
+ * Dstores are shared: each one joins every Controller and sends the ACKs for a file to the Controller that owns it.
+ * Clients route each request to the owning Controller and merge LIST and batch results across all of them. The map
+ * must be the same everywhere, which is why it is a plain ordered list of Controller ports read from the
+ * controller.shards system property, e.g. {@code -Dcontroller.shards=4000,4001,4002}. Without it there is a single
+ * shard and nothing changes.
+ */
+public final class ShardMap {
+
+    private final int[] cports;
+
+    public ShardMap(int... cports) {
+        if (cports.length == 0) {
+            throw new IllegalArgumentException("A shard map needs at least one Controller");
+        }
+        this.cports = cports.clone();
+    }
+
+    /**
+     * Reads the map from controller.shards, or returns a single shard on the given port when it is not set.
+     */
+    public static ShardMap fromProperty(int defaultCport) {
+        String property = System.getProperty("controller.shards");
+        if (property == null || property.isBlank()) {
+            return new ShardMap(defaultCport);
+        }
+        return new ShardMap(Arrays.stream(property.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray());
+    }
+
+    public int shardOf(String fileName) {
+        return cports.length == 1 ? 0 : Math.floorMod(fileName.hashCode(), cports.length);
+    }
+
+    public int controllerFor(String fileName) {
+        return cports[shardOf(fileName)];
+    }
+
+    /**
+     * Position of the Controller on the given port, or -1 if it is not part of the map.
+     */
+    public int indexOf(int cport) {
+        for (int i = 0; i < cports.length; i++) {
+            if (cports[i] == cport) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int get(int shard) {
+        return cports[shard];
+    }
+
+    public int size() {
+        return cports.length;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(cports);
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a Dstore's most loaded files on a fast tier, such as an SSD, in front of its capacity disks.
+ * <p>
+ * The fast tier is a directory of its own, set with dstore.tier.fast, in which {port} is replaced with the Dstore's
+ * port so that Dstores sharing a JVM or a machine get a folder each. New files are always written to the capacity
+ * disks. Every client load of a file adds to its heat, and every dstore.tier.intervalMillis the heat of all files is
+ * halved, so it reflects recent loads. After each halving the migrator works out the hottest files, loaded at least
+ * dstore.tier.minHits times, that fit in dstore.tier.fastBytes. It moves the fast tier's other files back to the
+ * capacity disks and then moves the hot ones up. A move copies the file to the other disk and then switches the
+ * Dstore's location for it, so loads keep being served from whichever tier holds the file. A move is dropped if the
+ * file is overwritten or removed while it is being copied.
+ */
+public class TierMigrator {
+
+    private static final long INTERVAL = Long.getLong("dstore.tier.intervalMillis", 10000L);
+    private static final long FAST_BYTES = Long.getLong("dstore.tier.fastBytes", 1024L * 1024 * 1024);
+    private static final int MIN_HITS = Integer.getInteger("dstore.tier.minHits", 2);
+    // Names the copies of moves in progress in the upload folder, apart from the uploads
+    public static final String PARTIAL_PREFIX = "tier-";
+
+    private final Disk fast;
+    private final List<Disk> capacity;
+    private final Map<String, Disk> locations;
+    private final FileLocks fileLocks;
+    private final int timeout;
+    private final Metrics metrics;
+    private final Map<String, Integer> heat = new ConcurrentHashMap<>();
+
+    public TierMigrator(Disk fast, List<Disk> capacity, Map<String, Disk> locations, FileLocks fileLocks, int timeout,
+                        Metrics metrics) {
+        this.fast = fast;
+        this.capacity = capacity;
+        this.locations = locations;
+        this.fileLocks = fileLocks;
+        this.timeout = timeout;
+        this.metrics = metrics;
+        metrics.gauge("tier.fast.files", () -> locations.values().stream().filter(disk -> disk == fast).count());
+        Thread migrator = new Thread(this::run, "tier-migrator");
+        migrator.setDaemon(true);
+        migrator.start();
+    }
+
+    public void recordAccess(String fileName) {
+        heat.merge(fileName, 1, Integer::sum);
+    }
+
+    public void forget(String fileName) {
+        heat.remove(fileName);
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                Thread.sleep(INTERVAL);
+                migrateOnce();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Log.error("Tier migration failed", e);
+            }
+        }
+    }
+
+    void migrateOnce() {
+        Map<String, Integer> snapshot = Map.copyOf(heat);
+        heat.replaceAll((fileName, hits) -> hits / 2);
+        heat.values().removeIf(hits -> hits == 0);
+
+        long onFast = 0;
+        for (Map.Entry<String, Disk> entry : locations.entrySet()) {
+            if (entry.getValue() == fast) {
+                onFast += fast.fileFor(entry.getKey()).length();
+            }
+        }
+        long budget = Math.min(FAST_BYTES, onFast + fast.getFreeBytes());
+        List<String> ranked = new ArrayList<>();
+        snapshot.forEach((fileName, hits) -> {
+            if (hits >= MIN_HITS && locations.containsKey(fileName)) {
+                ranked.add(fileName);
+            }
+        });
+        ranked.sort((a, b) -> Integer.compare(snapshot.get(b), snapshot.get(a)));
+        Set<String> hot = new HashSet<>();
+        for (String fileName : ranked) {
+            Disk disk = locations.get(fileName);
+            if (disk == null) {
+                continue;
+            }
+            long size = disk.fileFor(fileName).length();
+            if (size <= budget) {
+                hot.add(fileName);
+                budget -= size;
+            }
+        }
+
+        // Make room first, then promote
+        for (Map.Entry<String, Disk> entry : locations.entrySet()) {
+            String fileName = entry.getKey();
+            if (entry.getValue() == fast && !hot.contains(fileName)) {
+                Disk target = Disk.place(capacity, fast.fileFor(fileName).length());
+                if (move(fileName, fast, target)) {
+                    metrics.counter("tier.demotions").increment();
+                }
+            }
+        }
+        for (String fileName : hot) {
+            Disk current = locations.get(fileName);
+            if (current != null && current != fast && move(fileName, current, fast)) {
+                metrics.counter("tier.promotions").increment();
+            }
+        }
+    }
+
+    /**
+     * Copies the file to the target disk and switches its location there, unless it was written or removed during the
+     * copy. The check, the switch and the removal of the old copy happen under the file's lock, which every write
+     * takes to start, so a write either sees the new location or makes the move give up.
+     */
+    private boolean move(String fileName, Disk from, Disk to) {
+        File source = from.fileFor(fileName);
+        File target = to.fileFor(fileName);
+        // Copied under the target's upload folder first, so a move cut short is swept like an abandoned upload
+        File partial = to.uploadFileFor(PARTIAL_PREFIX + fileName);
+        long version;
+        synchronized (fileLocks.lockFor(fileName)) {
+            if (fileLocks.isWriting(fileName) || locations.get(fileName) != from) {
+                return false;
+            }
+            version = fileLocks.version(fileName);
+        }
+        try {
+            // A chunk at a time, so a big file does not keep either disk from other requests for the whole copy
+            try (InputStream reader = new FileInputStream(source); OutputStream writer = new FileOutputStream(partial)) {
+                byte[] buffer = new byte[Disk.CHUNK_BYTES];
+                int len;
+                while ((len = from.read(reader, buffer, timeout)) >= 0) {
+                    to.write(writer, buffer, len, timeout);
+                }
+            }
+            synchronized (fileLocks.lockFor(fileName)) {
+                if (fileLocks.isWriting(fileName) || fileLocks.version(fileName) != version) {
+                    partial.delete();
+                    return false;
+                }
+                Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if (!locations.replace(fileName, from, to)) {
+                    // Removed while it was being copied
+                    target.delete();
+                    return false;
+                }
+                source.delete();
+                return true;
+            }
+        } catch (IOException e) {
+            partial.delete();
+            Log.debug(() -> "Could not move " + fileName + " from " + from + " to " + to + ": " + e.getMessage());
+            return false;
+        }
+    }
+}
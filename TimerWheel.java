@@ -0,0 +1,95 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Hashed timer wheel shared by everything in the Controller that needs a deadline.
+ * <p>
+ * One thread advances the wheel every tick and fires the timeouts in the current bucket whose round has come up, so
+ * thousands of pending operations cost one queue entry each instead of one sleeping thread each. Deadlines are rounded
+ * up to the next tick. Scheduling and advancing the wheel share its lock, so a deadline is always counted from the
+ * tick it is filed under; the tasks themselves run outside the lock.
+ */
+public class TimerWheel {
+
+    private static final TimerWheel SHARED = new TimerWheel(10, 512);
+
+    private final long tickMillis;
+    private final List<ArrayDeque<Timeout>> buckets;
+    private long tick;
+
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadlineTick;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineTick) {
+            this.task = task;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    public TimerWheel(long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+        Thread thread = new Thread(this::run, "timer-wheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static TimerWheel shared() {
+        return SHARED;
+    }
+
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(task, tick + ticks);
+        buckets.get((int) (timeout.deadlineTick % buckets.size())).add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        long next = System.currentTimeMillis() + tickMillis;
+        List<Timeout> due = new ArrayList<>();
+        while (true) {
+            try {
+                long sleep = next - System.currentTimeMillis();
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+                next += tickMillis;
+                synchronized (this) {
+                    long current = ++tick;
+                    Iterator<Timeout> iterator = buckets.get((int) (current % buckets.size())).iterator();
+                    while (iterator.hasNext()) {
+                        Timeout timeout = iterator.next();
+                        if (timeout.cancelled) {
+                            iterator.remove();
+                        } else if (timeout.deadlineTick <= current) {
+                            iterator.remove();
+                            due.add(timeout);
+                        }
+                    }
+                }
+                for (Timeout timeout : due) {
+                    try {
+                        timeout.task.run();
+                    } catch (Exception e) {
+                        Log.error("Timeout task failed", e);
+                    }
+                }
+                due.clear();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import bench.Fixture;
+
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds the operations measured by the JMH benchmarks in the bench package, which cannot reach the default package
+ * themselves. The size is the number of files for the Controller and Rebalancer fixtures and the file size in bytes for
+ * the loopback ones.
+ */
+public class BenchmarkFixtures {
+
+    private static final int DSTORES = 10;
+    private static final int REPLICATION = 3;
+    private static final int TIMEOUT = 10000;
+
+    static final String[] LINES = {
+            Protocol.STORE_TOKEN + " some_file_name.txt 65536",
+            Protocol.LOAD_TOKEN + " some_file_name.txt",
+            Protocol.STORE_ACK_TOKEN + " some_file_name.txt",
+            Protocol.LIST_TOKEN + " " + String.join(" ", fileNames(100)),
+            Protocol.STORE_BATCH_TOKEN + " 3 a.txt 10 b.txt 20 c.txt 30"
+    };
+
+    public static Fixture create(String name, int size) throws Exception {
+        return switch (name) {
+            case "controller.selectDstores" -> selectDstores(size);
+            case "rebalancer.spreadFiles", "rebalancer.finalReBalanceOfFiles" -> rebalance(name, size);
+            case "dstoreModel.receive" -> receive();
+            case "protocol.split" -> split();
+            case "protocol.tokenize" -> tokenize();
+            case "loopback.store", "loopback.load" -> loopback(name, size);
+            default -> throw new IllegalArgumentException("No fixture named " + name);
+        };
+    }
+
+    /**
+     * A Controller that knows about the given number of files, spread evenly over Dstores connected through loopback
+     * sockets.
+     */
+    private static Fixture selectDstores(int files) throws Exception {
+        Controller controller = new Controller(0, REPLICATION, TIMEOUT, Integer.MAX_VALUE);
+        List<Socket> dstoreSides = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0)) {
+            for (int i = 0; i < DSTORES; i++) {
+                Socket socket = new Socket("localhost", server.getLocalPort());
+                dstoreSides.add(server.accept());
+                DstoreModel dstoreModel = new DstoreModel(socket, 20000 + i, TIMEOUT);
+                dstoreModel.setNumberOfFiles(files * REPLICATION / DSTORES);
+                controller.dstores.put(dstoreModel.getPort(), dstoreModel);
+            }
+        }
+        for (String fileName : fileNames(files)) {
+            Index index = new Index(64 * 1024, fileName);
+            index.setStatus(Index.Status.STORE_COMPLETE);
+            controller.indices.put(fileName, index);
+        }
+        ArrayList<Integer> excluded = new ArrayList<>();
+        return new Fixture() {
+            @Override
+            public Object run() {
+                return controller.selectDstores(excluded);
+            }
+
+            @Override
+            public void close() throws Exception {
+                // The DstoreModels see the end of their streams and stop, as when real Dstores leave
+                for (Socket socket : dstoreSides) {
+                    socket.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Files stored on every Dstore but the last, as after a new Dstore joins.
+     */
+    private static Fixture rebalance(String name, int files) {
+        Controller controller = new Controller(0, REPLICATION, TIMEOUT, Integer.MAX_VALUE);
+        Rebalancer rebalancer = new Rebalancer(Integer.MAX_VALUE, controller);
+        Map<Integer, ArrayList<String>> allocation = new HashMap<>();
+        for (int i = 0; i < DSTORES; i++) {
+            allocation.put(20000 + i, new ArrayList<>());
+        }
+        List<String> names = fileNames(files);
+        for (int f = 0; f < names.size(); f++) {
+            for (int r = 0; r < REPLICATION; r++) {
+                allocation.get(20000 + (f + r) % (DSTORES - 1)).add(names.get(f));
+            }
+        }
+        if (name.equals("rebalancer.spreadFiles")) {
+            return () -> rebalancer.spreadFiles(copy(allocation));
+        }
+        Map<String, Integer> storedBy = new HashMap<>();
+        allocation.values().forEach(fileNames -> fileNames.forEach(file -> storedBy.merge(file, 1, Integer::sum)));
+        return () -> rebalancer.finalReBalanceOfFiles(storedBy, copy(allocation));
+    }
+
+    /**
+     * Threads waiting on one DstoreModel for their own reply while the peer answers them, the same way the
+     * Controller's client threads share a Dstore connection. Meant to be run from several benchmark threads at once.
+     */
+    private static Fixture receive() throws Exception {
+        Socket controllerSide;
+        Socket dstoreSide;
+        try (ServerSocket server = new ServerSocket(0)) {
+            controllerSide = new Socket("localhost", server.getLocalPort());
+            dstoreSide = server.accept();
+        }
+        DstoreModel dstoreModel = new DstoreModel(controllerSide, dstoreSide.getLocalPort(), TIMEOUT);
+        PrintWriter peer = new PrintWriter(dstoreSide.getOutputStream(), true);
+        AtomicLong ids = new AtomicLong();
+        return new Fixture() {
+            @Override
+            public Object run() throws Exception {
+                // Acks are dispatched without going through the queue, so use a reply that does
+                String reply = Protocol.LIST_TOKEN + " file" + ids.incrementAndGet();
+                synchronized (peer) {
+                    peer.println(reply);
+                }
+                return dstoreModel.receive(reply::equals);
+            }
+
+            @Override
+            public void close() throws Exception {
+                dstoreSide.close();
+            }
+        };
+    }
+
+    /**
+     * How the handlers parsed messages before MessageTokenizer, kept to compare against.
+     */
+    private static Fixture split() {
+        return () -> {
+            String[] message = LINES[ThreadLocalRandom.current().nextInt(LINES.length)].split(" ");
+            if (message[0].equals(Protocol.STORE_TOKEN)) {
+                return Long.parseLong(message[2]);
+            } else if (message[0].equals(Protocol.STORE_BATCH_TOKEN)) {
+                int n = Integer.parseInt(message[1]);
+                long total = 0;
+                for (int i = 0; i < n; i++) {
+                    total += Long.parseLong(message[3 + 2 * i]);
+                }
+                return total;
+            }
+            return message;
+        };
+    }
+
+    private static Fixture tokenize() {
+        MessageTokenizer tokenizer = new MessageTokenizer();
+        return () -> {
+            tokenizer.reset(LINES[ThreadLocalRandom.current().nextInt(LINES.length)]);
+            String opcode = tokenizer.nextOpcode();
+            if (opcode.equals(Protocol.STORE_TOKEN)) {
+                tokenizer.skip();
+                return tokenizer.nextLong();
+            } else if (opcode.equals(Protocol.STORE_BATCH_TOKEN)) {
+                int n = tokenizer.nextInt();
+                long total = 0;
+                for (int i = 0; i < n; i++) {
+                    tokenizer.skip();
+                    total += tokenizer.nextLong();
+                }
+                return total;
+            }
+            String last = null;
+            while (tokenizer.hasNext()) {
+                last = tokenizer.next();
+            }
+            return last;
+        };
+    }
+
+    /**
+     * A Controller and one Dstore on loopback, measured through whole STORE and LOAD operations of the client.
+     */
+    private static Fixture loopback(String name, int fileSize) throws Exception {
+        LocalCluster cluster = LocalCluster.start(1, 1, TIMEOUT, Integer.MAX_VALUE);
+        AsyncClient client = new AsyncClient(cluster.getCport(), TIMEOUT, 8);
+        byte[] data = new byte[fileSize];
+        new Random(1).nextBytes(data);
+        if (name.equals("loopback.store")) {
+            AtomicLong ids = new AtomicLong();
+            return new Fixture() {
+                @Override
+                public Object run() throws Exception {
+                    return client.store("store" + ids.incrementAndGet(), data).get();
+                }
+
+                @Override
+                public void close() {
+                    client.close();
+                }
+            };
+        }
+        int loadFiles = 100;
+        for (int i = 0; i < loadFiles; i++) {
+            client.store("load" + i, data).get();
+        }
+        return new Fixture() {
+            @Override
+            public Object run() throws Exception {
+                return client.load("load" + ThreadLocalRandom.current().nextInt(loadFiles)).get();
+            }
+
+            @Override
+            public void close() {
+                client.close();
+            }
+        };
+    }
+
+    private static Map<Integer, ArrayList<String>> copy(Map<Integer, ArrayList<String>> allocation) {
+        Map<Integer, ArrayList<String>> copy = new HashMap<>();
+        allocation.forEach((port, files) -> copy.put(port, new ArrayList<>(files)));
+        return copy;
+    }
+
+    private static List<String> fileNames(int files) {
+        List<String> names = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            names.add("file" + i + ".txt");
+        }
+        return names;
+    }
+}
@@ -0,0 +1,42 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Choosing the Dstores for a STORE out of ten, with the given number of files already stored.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ControllerBenchmark {
+
+    @Param({"1000", "10000"})
+    public int files;
+
+    private Fixture selectDstores;
+
+    @Setup
+    public void setUp() throws Exception {
+        selectDstores = Fixture.create("controller.selectDstores", files);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        selectDstores.close();
+    }
+
+    @Benchmark
+    public Object selectDstores() throws Exception {
+        return selectDstores.run();
+    }
+}
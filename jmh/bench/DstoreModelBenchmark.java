@@ -0,0 +1,40 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Eight threads waiting for their own replies on one Dstore connection, through getMessageFromQueue.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+public class DstoreModelBenchmark {
+
+    private Fixture receive;
+
+    @Setup
+    public void setUp() throws Exception {
+        receive = Fixture.create("dstoreModel.receive", 0);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        receive.close();
+    }
+
+    @Benchmark
+    public Object receiveUnderContention() throws Exception {
+        return receive.run();
+    }
+}
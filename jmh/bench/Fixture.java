@@ -0,0 +1,21 @@
+package bench;
+
+/**
+ * One benchmarked operation, set up by BenchmarkFixtures.
+ * <p>
+ * JMH will not generate code for benchmarks in the default package, and code in a package cannot name the classes of
+ * the default package, so the benchmarks only see the store through this interface. BenchmarkFixtures, which lives in
+ * the default package with the rest of the sources, builds each fixture and is looked up by name once per trial.
+ */
+public interface Fixture extends AutoCloseable {
+
+    Object run() throws Exception;
+
+    @Override
+    default void close() throws Exception {
+    }
+
+    static Fixture create(String name, int size) throws Exception {
+        return (Fixture) Class.forName("BenchmarkFixtures").getMethod("create", String.class, int.class).invoke(null, name, size);
+    }
+}
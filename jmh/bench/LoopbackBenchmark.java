@@ -0,0 +1,52 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole STOREs and LOADs against a Controller and one Dstore in the benchmark's JVM, from four client threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+public class LoopbackBenchmark {
+
+    @Param({"1024", "1048576"})
+    public int fileSize;
+
+    private Fixture store;
+    private Fixture load;
+
+    @Setup
+    public void setUp() throws Exception {
+        store = Fixture.create("loopback.store", fileSize);
+        load = Fixture.create("loopback.load", fileSize);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        store.close();
+        load.close();
+    }
+
+    @Benchmark
+    public Object store() throws Exception {
+        return store.run();
+    }
+
+    @Benchmark
+    public Object load() throws Exception {
+        return load.run();
+    }
+}
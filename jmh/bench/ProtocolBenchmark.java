@@ -0,0 +1,39 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a mix of protocol messages with MessageTokenizer, against the String.split it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ProtocolBenchmark {
+
+    private Fixture split;
+    private Fixture tokenize;
+
+    @Setup
+    public void setUp() throws Exception {
+        split = Fixture.create("protocol.split", 0);
+        tokenize = Fixture.create("protocol.tokenize", 0);
+    }
+
+    @Benchmark
+    public Object split() throws Exception {
+        return split.run();
+    }
+
+    @Benchmark
+    public Object tokenize() throws Exception {
+        return tokenize.run();
+    }
+}
@@ -0,0 +1,50 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Planning a rebalance after a tenth, empty Dstore joins nine holding every file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RebalancerBenchmark {
+
+    @Param({"1000", "10000"})
+    public int files;
+
+    private Fixture spreadFiles;
+    private Fixture finalReBalanceOfFiles;
+
+    @Setup
+    public void setUp() throws Exception {
+        spreadFiles = Fixture.create("rebalancer.spreadFiles", files);
+        finalReBalanceOfFiles = Fixture.create("rebalancer.finalReBalanceOfFiles", files);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        spreadFiles.close();
+        finalReBalanceOfFiles.close();
+    }
+
+    @Benchmark
+    public Object spreadFiles() throws Exception {
+        return spreadFiles.run();
+    }
+
+    @Benchmark
+    public Object finalReBalanceOfFiles() throws Exception {
+        return finalReBalanceOfFiles.run();
+    }
+}
@@ -0,0 +1,148 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClientSchedulerTest {
+
+    private ClientScheduler scheduler;
+
+    @BeforeEach
+    void startScheduler() {
+        scheduler = new ClientScheduler(new Metrics("test"));
+    }
+
+    @AfterEach
+    void stopScheduler() {
+        scheduler.shutdown();
+        System.clearProperty("controller.rate.client.limited");
+    }
+
+    @Test
+    void runsSubmittedRequests() throws Exception {
+        ClientScheduler.Flow flow = scheduler.open("runs", ClientScheduler.DEFAULT_CLASS);
+        AtomicInteger ran = new AtomicInteger();
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            done.add(scheduler.submit(flow, 1, ran::incrementAndGet));
+        }
+        CompletableFuture.allOf(done.toArray(CompletableFuture<?>[]::new)).get(5, TimeUnit.SECONDS);
+        assertEquals(100, ran.get());
+        scheduler.close(flow);
+    }
+
+    @Test
+    void failingRequestCompletesExceptionally() {
+        ClientScheduler.Flow flow = scheduler.open("fails", ClientScheduler.DEFAULT_CLASS);
+        CompletableFuture<Void> done = scheduler.submit(flow, 1, () -> {
+            throw new IllegalStateException("expected by the test");
+        });
+        assertThrows(Exception.class, () -> done.get(5, TimeUnit.SECONDS));
+        scheduler.close(flow);
+    }
+
+    @Test
+    void connectionsWithTheSameIdShareAFlow() {
+        ClientScheduler.Flow first = scheduler.open("shared", ClientScheduler.DEFAULT_CLASS);
+        ClientScheduler.Flow second = scheduler.open("shared", ClientScheduler.DEFAULT_CLASS);
+        assertTrue(first == second);
+        assertEquals(1, scheduler.getClients());
+        scheduler.close(first);
+        scheduler.close(second);
+    }
+
+    @Test
+    void unnamedConnectionsHaveFlowsOfTheirOwn() {
+        ClientScheduler.Flow first = scheduler.openUnnamed("127.0.0.1:40000");
+        ClientScheduler.Flow second = scheduler.openUnnamed("127.0.0.1:40001");
+        assertTrue(first != second);
+        assertEquals(2, scheduler.getClients());
+        scheduler.close(first);
+        scheduler.close(second);
+        // Nothing can reconnect to them, so they go without waiting to be idle
+        ClientScheduler.Flow named = scheduler.open("named", ClientScheduler.DEFAULT_CLASS);
+        assertEquals(1, scheduler.getClients());
+        scheduler.close(named);
+    }
+
+    @Test
+    void floodingClientDoesNotHoldBackAnother() throws Exception {
+        ClientScheduler.Flow flood = scheduler.open("flood", ClientScheduler.DEFAULT_CLASS);
+        ClientScheduler.Flow quiet = scheduler.open("quiet", ClientScheduler.DEFAULT_CLASS);
+        CountDownLatch release = new CountDownLatch(1);
+        List<CompletableFuture<Void>> flooded = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            flooded.add(scheduler.submit(flood, 1, () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        // The flood is capped below the number of workers, so the quiet client still gets one
+        scheduler.submit(quiet, 1, () -> {}).get(5, TimeUnit.SECONDS);
+        release.countDown();
+        CompletableFuture.allOf(flooded.toArray(CompletableFuture<?>[]::new)).get(30, TimeUnit.SECONDS);
+        scheduler.close(flood);
+        scheduler.close(quiet);
+    }
+
+    @Test
+    void manyFloodingClientsDoNotTakeEveryWorker() throws Exception {
+        int flows = 8;
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger mostRunning = new AtomicInteger();
+        List<ClientScheduler.Flow> flooding = new ArrayList<>();
+        List<CompletableFuture<Void>> flooded = new ArrayList<>();
+        for (int f = 0; f < flows; f++) {
+            ClientScheduler.Flow flood = scheduler.openUnnamed("127.0.0.1:" + (41000 + f));
+            flooding.add(flood);
+            for (int i = 0; i < 100; i++) {
+                flooded.add(scheduler.submit(flood, 1, true, () -> {
+                    mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                }));
+            }
+        }
+        // Together the flows could hold every worker in requests that block, but the cap leaves some for the rest
+        ClientScheduler.Flow quiet = scheduler.open("quiet", ClientScheduler.DEFAULT_CLASS);
+        scheduler.submit(quiet, 1, () -> {}).get(5, TimeUnit.SECONDS);
+        assertTrue(mostRunning.get() < Integer.getInteger("controller.scheduler.threads", 64));
+        release.countDown();
+        CompletableFuture.allOf(flooded.toArray(CompletableFuture<?>[]::new)).get(30, TimeUnit.SECONDS);
+        flooding.forEach(scheduler::close);
+        scheduler.close(quiet);
+    }
+
+    @Test
+    void rateLimitedClientIsThrottled() throws Exception {
+        System.setProperty("controller.rate.client.limited", "50");
+        ClientScheduler.Flow flow = scheduler.open("limited", ClientScheduler.DEFAULT_CLASS);
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            done.add(scheduler.submit(flow, 1, () -> {}));
+        }
+        CompletableFuture.allOf(done.toArray(CompletableFuture<?>[]::new)).get(10, TimeUnit.SECONDS);
+        // A burst of 50, then the other 50 at 50 a second
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+        scheduler.close(flow);
+    }
+}
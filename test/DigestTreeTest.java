@@ -0,0 +1,69 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DigestTreeTest {
+
+    private static List<String> names(int count) {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            names.add("file" + i);
+        }
+        return names;
+    }
+
+    @Test
+    void sameNamesInAnyOrderGiveTheSameRoot() {
+        List<String> names = names(1000);
+        List<String> reversed = new ArrayList<>(names);
+        java.util.Collections.reverse(reversed);
+        assertEquals(DigestTree.of(2, names).digest(0, 0), DigestTree.of(2, reversed).digest(0, 0));
+    }
+
+    @Test
+    void differingNameIsFoundByDescendingIntoDifferingNodes() {
+        List<String> names = names(1000);
+        List<String> other = new ArrayList<>(names);
+        other.remove("file500");
+        DigestTree tree = DigestTree.of(2, names);
+        DigestTree otherTree = DigestTree.of(2, other);
+        assertNotEquals(tree.digest(0, 0), otherTree.digest(0, 0));
+
+        int node = 0;
+        for (int level = 1; level <= tree.getDepth(); level++) {
+            int differing = -1;
+            for (int child = node * DigestTree.FANOUT; child < (node + 1) * DigestTree.FANOUT; child++) {
+                if (tree.digest(level, child) != otherTree.digest(level, child)) {
+                    assertEquals(-1, differing, "Only one node per level should differ");
+                    differing = child;
+                }
+            }
+            node = differing;
+        }
+        assertEquals(tree.bucketOf("file500"), node);
+        assertTrue(tree.bucket(node).contains("file500"));
+        assertTrue(otherTree.bucket(node).stream().noneMatch("file500"::equals));
+    }
+
+    @Test
+    void addingANameTwiceCancelsItsDigest() {
+        DigestTree tree = new DigestTree(1);
+        tree.add("a");
+        tree.add("a");
+        assertEquals(0, tree.digest(0, 0));
+    }
+
+    @Test
+    void depthGrowsWithTheNumberOfNames() {
+        assertEquals(0, DigestTree.depthFor(8));
+        assertEquals(1, DigestTree.depthFor(9));
+        assertEquals(DigestTree.MAX_DEPTH, DigestTree.depthFor(Integer.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> new DigestTree(DigestTree.MAX_DEPTH + 1));
+    }
+}
@@ -0,0 +1,28 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileLocksTest {
+
+    @Test
+    void writesAreCountedUntilTheLastEnds() {
+        FileLocks locks = new FileLocks();
+        locks.startWrite("a");
+        locks.startWrite("a");
+        locks.endWrite("a");
+        assertTrue(locks.isWriting("a"));
+        locks.endWrite("a");
+        assertFalse(locks.isWriting("a"));
+    }
+
+    @Test
+    void writeChangesTheVersionSeenByAMove() {
+        FileLocks locks = new FileLocks();
+        long before = locks.version("a");
+        locks.startWrite("a");
+        locks.endWrite("a");
+        assertNotEquals(before, locks.version("a"));
+    }
+}
@@ -0,0 +1,68 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class HotFileCacheTest {
+
+    @TempDir
+    File folder;
+
+    @Test
+    void loadedFileIsServedFromTheCache() throws IOException {
+        HotFileCache cache = new HotFileCache(1024, 1024);
+        File file = new File(folder, "a");
+        Files.write(file.toPath(), new byte[]{1, 2, 3});
+        assertEquals(3, cache.load("a", file).remaining());
+        ByteBuffer cached = cache.get("a");
+        assertNotNull(cached);
+        assertEquals(2, cached.get(1));
+    }
+
+    @Test
+    void invalidationDuringALoadKeepsItsContentsOut() {
+        HotFileCache cache = new HotFileCache(1024, 1024);
+        long generation = cache.generation("a");
+        // The file is overwritten while the old contents are being read
+        cache.invalidate("a");
+        assertNotNull(cache.offer("a", new byte[]{1}, generation));
+        assertNull(cache.get("a"));
+
+        cache.offer("a", new byte[]{2}, cache.generation("a"));
+        assertEquals(2, cache.get("a").get(0));
+    }
+
+    @Test
+    void filesLargerThanAnEntryAreNotCached() {
+        HotFileCache cache = new HotFileCache(1024, 2);
+        assertNull(cache.offer("a", new byte[3], cache.generation("a")));
+        assertEquals(0, cache.getEntries());
+    }
+
+    @Test
+    void rejectedCandidateEvictsNothing() {
+        HotFileCache cache = new HotFileCache(100, 100);
+        // Misses count towards the frequency without caching anything: y is hotter than c, x is colder
+        for (int i = 0; i < 3; i++) {
+            cache.get("y");
+        }
+        cache.get("c");
+        cache.get("c");
+        cache.offer("x", new byte[40], cache.generation("x"));
+        cache.offer("y", new byte[40], cache.generation("y"));
+
+        // c needs both x and y gone but is not requested more often than y
+        cache.offer("c", new byte[70], cache.generation("c"));
+        assertEquals(0, cache.getEvictions());
+        assertEquals(2, cache.getEntries());
+        assertNotNull(cache.get("x"));
+        assertNull(cache.get("c"));
+    }
+}
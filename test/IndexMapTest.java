@@ -0,0 +1,58 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class IndexMapTest {
+
+    private static Index stored(String fileName) {
+        Index index = new Index(1, fileName);
+        index.setStatus(Index.Status.STORE_COMPLETE);
+        return index;
+    }
+
+    @Test
+    void sizeFollowsTheCountingMutators() {
+        IndexMap indices = new IndexMap();
+        indices.put("a", stored("a"));
+        indices.put("a", stored("a"));
+        indices.putIfAbsent("b", stored("b"));
+        indices.putIfAbsent("b", stored("b"));
+        assertEquals(2, indices.size());
+
+        indices.remove("missing");
+        indices.remove("a", stored("a"));
+        assertEquals(2, indices.size());
+        indices.remove("a");
+        assertEquals(1, indices.size());
+
+        indices.put("c", stored("c"));
+        indices.keySet().removeIf("c"::equals);
+        assertEquals(1, indices.size());
+        indices.clear();
+        assertEquals(0, indices.size());
+    }
+
+    @Test
+    void pagesThroughStoredFilesWithAPrefix() {
+        IndexMap indices = new IndexMap();
+        for (String name : new String[]{"a1", "b1", "b2", "b3", "b4", "c1"}) {
+            indices.put(name, stored(name));
+        }
+        indices.get("b2").setStatus(Index.Status.STORE_IN_PROGRESS);
+
+        List<String> page = new ArrayList<>();
+        assertEquals(2, indices.forEachStored("b", "", 2, page::add));
+        assertEquals(List.of("b1", "b3"), page);
+
+        page.clear();
+        assertEquals(1, indices.forEachStored("b", "b3", 2, page::add));
+        assertEquals(List.of("b4"), page);
+
+        page.clear();
+        indices.forEachStored("", "b4", 10, page::add);
+        assertEquals(List.of("c1"), page);
+    }
+}
@@ -0,0 +1,51 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(0.99));
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 20; i++) {
+            histogram.record(i);
+        }
+        assertEquals(20, histogram.getCount());
+        assertEquals(10.5, histogram.getMean(), 1e-9);
+        assertEquals(10, histogram.getPercentile(0.5));
+        assertEquals(20, histogram.getPercentile(1));
+        assertEquals(20, histogram.getMax());
+    }
+
+    @Test
+    void percentilesStayWithinTheRelativeError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100_000; i++) {
+            histogram.record(i);
+        }
+        for (double fraction : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            long expected = (long) (100_000 * fraction);
+            long actual = histogram.getPercentile(fraction);
+            assertTrue(actual >= expected && actual <= expected * 1.04,
+                    "p" + fraction + " was " + actual + ", expected about " + expected);
+        }
+    }
+
+    @Test
+    void negativeValuesCountAsZeroAndNanosAreConverted() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.recordNanos(7_000);
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(7, histogram.getMax());
+    }
+}
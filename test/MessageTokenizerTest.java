@@ -0,0 +1,83 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageTokenizerTest {
+
+    @Test
+    void opcodesAreTheProtocolConstants() {
+        MessageTokenizer tokenizer = new MessageTokenizer(new StringBuilder(Protocol.STORE_TOKEN + " a.txt 42"));
+        assertSame(Protocol.STORE_TOKEN, tokenizer.nextOpcode());
+        assertEquals("a.txt", tokenizer.next());
+        assertEquals(42, tokenizer.nextLong());
+        assertFalse(tokenizer.hasNext());
+    }
+
+    @Test
+    void unknownOpcodeIsReturnedAsIs() {
+        assertEquals("HELLO", new MessageTokenizer("HELLO there").nextOpcode());
+        assertEquals("STOR", new MessageTokenizer("STOR x").nextOpcode());
+    }
+
+    @Test
+    void repeatedSpacesAreSkipped() {
+        MessageTokenizer tokenizer = new MessageTokenizer("  LIST  a   b ");
+        assertSame(Protocol.LIST_TOKEN, tokenizer.nextOpcode());
+        tokenizer.skip();
+        assertEquals("b", tokenizer.next());
+        assertFalse(tokenizer.hasNext());
+    }
+
+    @Test
+    void numbersAreParsedInPlace() {
+        MessageTokenizer tokenizer = new MessageTokenizer("-12 9223372036854775807 12a - 2147483648");
+        assertEquals(-12, tokenizer.nextInt());
+        assertEquals(Long.MAX_VALUE, tokenizer.nextLong());
+        assertThrows(NumberFormatException.class, tokenizer::nextLong);
+        tokenizer.skip();
+        assertThrows(NumberFormatException.class, tokenizer::nextLong);
+        tokenizer.skip();
+        assertThrows(NumberFormatException.class, tokenizer::nextInt);
+    }
+
+    @Test
+    void countsOutsideTheLimitAreMalformed() {
+        MessageTokenizer tokenizer = new MessageTokenizer("3 -1 11 2147483647");
+        assertEquals(3, tokenizer.nextCount(10));
+        assertThrows(NumberFormatException.class, () -> tokenizer.nextCount(10));
+        assertThrows(NumberFormatException.class, () -> tokenizer.nextCount(10));
+        assertThrows(NumberFormatException.class, () -> tokenizer.nextCount(10));
+    }
+
+    @Test
+    void emptyOrShortMessagesThrow() {
+        assertFalse(new MessageTokenizer("").hasNext());
+        assertFalse(new MessageTokenizer("   ").hasNext());
+        assertThrows(NoSuchElementException.class, () -> new MessageTokenizer("").nextOpcode());
+        MessageTokenizer tokenizer = new MessageTokenizer(Protocol.LOAD_TOKEN);
+        tokenizer.nextOpcode();
+        assertThrows(NoSuchElementException.class, tokenizer::next);
+    }
+
+    @Test
+    void resetReusesTheTokenizer() {
+        MessageTokenizer tokenizer = new MessageTokenizer("a b");
+        tokenizer.next();
+        tokenizer.reset("c");
+        assertEquals("c", tokenizer.getLine());
+        assertEquals("c", tokenizer.next());
+    }
+
+    @Test
+    void startsWithTokenMatchesWholeTokens() {
+        assertTrue(MessageTokenizer.startsWithToken("LIST a b", "LIST"));
+        assertTrue(MessageTokenizer.startsWithToken("LIST", "LIST"));
+        assertFalse(MessageTokenizer.startsWithToken("LISTING", "LIST"));
+    }
+}
@@ -0,0 +1,43 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicaSetTest {
+
+    @Test
+    void equalSetsAreInterned() {
+        assertSame(ReplicaSet.of(3, 1, 2), ReplicaSet.of(1, 2, 3));
+        assertSame(ReplicaSet.of(1, 1, 2), ReplicaSet.of(2, 1));
+        assertSame(ReplicaSet.EMPTY, ReplicaSet.of());
+        assertSame(ReplicaSet.of(1, 2, 3), ReplicaSet.EMPTY.with(2).with(3).with(1));
+    }
+
+    @Test
+    void withAndWithoutKeepThePortsSorted() {
+        ReplicaSet set = ReplicaSet.of(4000, 2000).with(3000);
+        List<Integer> ports = new ArrayList<>();
+        set.forEach(ports::add);
+        assertEquals(List.of(2000, 3000, 4000), ports);
+        assertEquals(3, set.size());
+        assertEquals(3000, set.get(1));
+
+        ReplicaSet removed = set.without(3000);
+        assertTrue(removed.contains(2000));
+        assertFalse(removed.contains(3000));
+        assertSame(ReplicaSet.of(2000, 4000), removed);
+    }
+
+    @Test
+    void unchangedSetIsReturnedAsIs() {
+        ReplicaSet set = ReplicaSet.of(1, 2);
+        assertSame(set, set.with(1));
+        assertSame(set, set.without(3));
+        assertTrue(ReplicaSet.of(1).without(1).isEmpty());
+    }
+}
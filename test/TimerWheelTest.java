@@ -0,0 +1,53 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTest {
+
+    @Test
+    void timeoutFiresAfterItsDelay() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(5, 16);
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(fired::countDown, 50);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(45));
+    }
+
+    @Test
+    void timeoutLongerThanTheWheelWaitsForItsRound() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(5, 4);
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(fired::countDown, 100);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(95));
+    }
+
+    @Test
+    void cancelledTimeoutDoesNotFire() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(5, 16);
+        AtomicBoolean fired = new AtomicBoolean();
+        wheel.schedule(() -> fired.set(true), 30).cancel();
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(later::countDown, 60);
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(fired.get());
+    }
+
+    @Test
+    void failingTaskDoesNotStopTheWheel() throws InterruptedException {
+        TimerWheel wheel = new TimerWheel(5, 16);
+        wheel.schedule(() -> {
+            throw new IllegalStateException("expected by the test");
+        }, 10);
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(fired::countDown, 30);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+    }
+}